@@ -0,0 +1,131 @@
+package com.dataiku.hive.storage;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * XMLHiveInputFormat which packs the splits of small files into XMLCombinedSplit, up to
+ * xml.combine.split.size bytes (the max split size, or 256MB, by default).
+ *
+ * Splits are only combined within a directory (hence a partition). The splits of each host are
+ * combined first, and the remaining ones are then combined regardless of their location.
+ */
+public class XMLCombineHiveInputFormat extends XMLHiveInputFormat {
+
+    public static final String COMBINE_SIZE_KEY = "xml.combine.split.size";
+
+    @Override
+    public InputSplit[] getSplits(JobConf job, int numSplits) throws IOException {
+        long maxSize = job.getLong(COMBINE_SIZE_KEY, job.getLong("mapred.max.split.size", 256L * 1024 * 1024));
+
+        Map<Path, List<FileSplit>> byDirectory = new LinkedHashMap<Path, List<FileSplit>>();
+        List<InputSplit> result = new ArrayList<InputSplit>();
+        for (InputSplit split : super.getSplits(job, numSplits)) {
+            FileSplit fileSplit = (FileSplit) split;
+            if (fileSplit.getLength() >= maxSize) {
+                result.add(fileSplit);
+                continue;
+            }
+            Path directory = fileSplit.getPath().getParent();
+            List<FileSplit> splits = byDirectory.get(directory);
+            if (splits == null) {
+                splits = new ArrayList<FileSplit>();
+                byDirectory.put(directory, splits);
+            }
+            splits.add(fileSplit);
+        }
+
+        for (List<FileSplit> splits : byDirectory.values()) {
+            combine(splits, maxSize, result);
+        }
+        LOG.info("Combined XML input into " + result.size() + " splits");
+        return result.toArray(new InputSplit[result.size()]);
+    }
+
+    private void combine(List<FileSplit> splits, long maxSize, List<InputSplit> result) throws IOException {
+        Map<String, List<FileSplit>> byHost = new LinkedHashMap<String, List<FileSplit>>();
+        for (FileSplit split : splits) {
+            for (String host : split.getLocations()) {
+                List<FileSplit> hostSplits = byHost.get(host);
+                if (hostSplits == null) {
+                    hostSplits = new ArrayList<FileSplit>();
+                    byHost.put(host, hostSplits);
+                }
+                hostSplits.add(split);
+            }
+        }
+
+        // Node local splits, as long as there is enough data on a host to fill them
+        Set<FileSplit> remaining = new LinkedHashSet<FileSplit>(splits);
+        for (Map.Entry<String, List<FileSplit>> entry : byHost.entrySet()) {
+            List<FileSplit> current = new ArrayList<FileSplit>();
+            long size = 0;
+            for (FileSplit split : entry.getValue()) {
+                if (!remaining.contains(split)) {
+                    continue;
+                }
+                current.add(split);
+                size += split.getLength();
+                if (size >= maxSize) {
+                    result.add(new XMLCombinedSplit(current, new String[] { entry.getKey() }));
+                    remaining.removeAll(current);
+                    current = new ArrayList<FileSplit>();
+                    size = 0;
+                }
+            }
+        }
+
+        // Whatever is left, located on the hosts holding most of it
+        List<FileSplit> current = new ArrayList<FileSplit>();
+        long size = 0;
+        for (FileSplit split : remaining) {
+            current.add(split);
+            size += split.getLength();
+            if (size >= maxSize) {
+                result.add(new XMLCombinedSplit(current, mainHosts(current)));
+                current = new ArrayList<FileSplit>();
+                size = 0;
+            }
+        }
+        if (!current.isEmpty()) {
+            result.add(new XMLCombinedSplit(current, mainHosts(current)));
+        }
+    }
+
+    /**
+     * The (up to 3) hosts holding the most bytes of the splits
+     */
+    private static String[] mainHosts(List<FileSplit> splits) throws IOException {
+        final Map<String, Long> bytes = new HashMap<String, Long>();
+        for (FileSplit split : splits) {
+            for (String host : split.getLocations()) {
+                Long b = bytes.get(host);
+                bytes.put(host, (b == null ? 0 : b) + split.getLength());
+            }
+        }
+        List<String> hosts = new ArrayList<String>(bytes.keySet());
+        Collections.sort(hosts, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return bytes.get(b).compareTo(bytes.get(a));
+            }
+        });
+        if (hosts.size() > 3) {
+            hosts = hosts.subList(0, 3);
+        }
+        return hosts.toArray(new String[hosts.size()]);
+    }
+}
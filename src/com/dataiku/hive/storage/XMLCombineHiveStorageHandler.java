@@ -0,0 +1,13 @@
+package com.dataiku.hive.storage;
+
+import org.apache.hadoop.mapred.InputFormat;
+
+/**
+ * XMLHiveStorageHandler for tables made of many small files, several files being read by each mapper
+ */
+public class XMLCombineHiveStorageHandler extends XMLHiveStorageHandler {
+    @Override
+    public Class<? extends InputFormat> getInputFormatClass() {
+        return XMLCombineHiveInputFormat.class;
+    }
+}
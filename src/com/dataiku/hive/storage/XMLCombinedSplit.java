@@ -0,0 +1,86 @@
+package com.dataiku.hive.storage;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.FileSplit;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Split made of several file splits of the same directory, read in sequence by XmlRecordReader.
+ *
+ * It is a FileSplit of the first file, covering the total length, so that Hive maps it
+ * to the partition of its directory.
+ */
+public class XMLCombinedSplit extends FileSplit {
+    private Path[] paths;
+    private long[] starts;
+    private long[] lengths;
+
+    public XMLCombinedSplit() {
+        super((Path) null, 0, 0, (String[]) null);
+    }
+
+    public XMLCombinedSplit(List<FileSplit> splits, String[] hosts) {
+        super(splits.get(0).getPath(), 0, totalLength(splits), hosts);
+        int n = splits.size();
+        paths = new Path[n];
+        starts = new long[n];
+        lengths = new long[n];
+        for (int i = 0; i < n; i++) {
+            paths[i] = splits.get(i).getPath();
+            starts[i] = splits.get(i).getStart();
+            lengths[i] = splits.get(i).getLength();
+        }
+    }
+
+    private static long totalLength(List<FileSplit> splits) {
+        long length = 0;
+        for (FileSplit split : splits) {
+            length += split.getLength();
+        }
+        return length;
+    }
+
+    public FileSplit[] getChunks() {
+        FileSplit[] chunks = new FileSplit[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            chunks[i] = new FileSplit(paths[i], starts[i], lengths[i], (String[]) null);
+        }
+        return chunks;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        WritableUtils.writeVInt(out, paths.length);
+        for (int i = 0; i < paths.length; i++) {
+            Text.writeString(out, paths[i].toString());
+            WritableUtils.writeVLong(out, starts[i]);
+            WritableUtils.writeVLong(out, lengths[i]);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        super.readFields(in);
+        int n = WritableUtils.readVInt(in);
+        paths = new Path[n];
+        starts = new long[n];
+        lengths = new long[n];
+        for (int i = 0; i < n; i++) {
+            paths[i] = new Path(Text.readString(in));
+            starts[i] = WritableUtils.readVLong(in);
+            lengths[i] = WritableUtils.readVLong(in);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getPath() + " and " + (paths.length - 1) + " more:0+" + getLength();
+    }
+}
@@ -23,168 +23,789 @@ package com.dataiku.hive.storage;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Properties;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
-import com.sun.org.apache.xerces.internal.impl.xpath.regex.Match;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.hive.conf.HiveConf;
 import org.apache.hadoop.hive.ql.exec.Utilities;
+import org.apache.hadoop.hive.ql.plan.ExprNodeDesc;
+import org.apache.hadoop.hive.ql.plan.PartitionDesc;
+import org.apache.hadoop.hive.ql.plan.TableScanDesc;
+import org.apache.hadoop.hive.serde.serdeConstants;
 import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CodecPool;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
 import org.apache.hadoop.mapred.*;
-import sun.nio.cs.ext.MacHebrew;
 
 /**
  * Reads records that are delimited by a specfic begin/end tag.
+ *
+ * xml.tag may list several tags, separated by commas: the records of all of them are read in a single pass.
  */
 public class XMLHiveInputFormat extends TextInputFormat {
 
     public static final String TAG_KEY = "xml.tag";
+    public static final String BUFFER_SIZE_KEY = "xml.read.buffer.size";
+    // Number of blocks read ahead by a background thread, 0 to read on the scanning thread
+    public static final String PREFETCH_BLOCKS_KEY = "xml.prefetch.blocks";
+    // Records longer than this are skipped, or cut with xml.record.truncate, 0 for no limit
+    public static final String MAX_RECORD_SIZE_KEY = "xml.record.max.size";
+    public static final String TRUNCATE_RECORDS_KEY = "xml.record.truncate";
+    // Whether readers build the missing indexes of the files they read entirely (see XMLIndex)
+    public static final String INDEX_WRITE_KEY = "xml.index.write";
+    // Whether the indexes of the files are used, also implied by xml.index.write and xml.index.key
+    public static final String INDEX_READ_KEY = "xml.index.read";
+    // Column mapped to the index key attribute, set by XMLHiveStorageHandler
+    public static final String INDEX_KEY_COLUMN_KEY = "xml.index.key.column";
+    // Sampling of uncompressed files: one block out of xml.sample.every (or enough blocks for xml.sample.percent),
+    // of xml.sample.block.size bytes, from which at most xml.sample.records records are read
+    public static final String SAMPLE_EVERY_KEY = "xml.sample.every";
+    public static final String SAMPLE_PERCENT_KEY = "xml.sample.percent";
+    public static final String SAMPLE_BLOCK_SIZE_KEY = "xml.sample.block.size";
+    public static final String SAMPLE_RECORDS_KEY = "xml.sample.records";
+    // Number of threads parsing the column paths of the records, 0 to let the serde parse them
+    public static final String PARSE_THREADS_KEY = "xml.parse.threads";
+    public static final String PARSE_BATCH_SIZE_KEY = "xml.parse.batch.size";
+
+    public static enum Counter {
+        OVERSIZED_RECORDS_SKIPPED,
+        OVERSIZED_RECORDS_TRUNCATED,
+        RECORDS_FILTERED,
+        // Bytes read from the files, and produced by the decompression of compressed files
+        BYTES_READ,
+        BYTES_DECOMPRESSED,
+        RECORDS_READ,
+        // Sum of the sizes of the records read, and largest record of the task
+        RECORD_BYTES,
+        RECORD_MAX_BYTES,
+        // Tags rejected because their name only starts with a record tag name
+        NEAR_MISS_TAGS,
+        // Time spent waiting for the (decompressed) streams, and the rest of the time spent reading records
+        READ_MILLIS,
+        SCAN_MILLIS
+    }
 
     public static final Log LOG = LogFactory.getLog(XMLHiveInputFormat.class.getName());
 
+    private CompressionCodecFactory compressionCodecs = null;
+
+    @Override
+    public void configure(JobConf conf) {
+        super.configure(conf);
+        compressionCodecs = new CompressionCodecFactory(conf);
+    }
+
+    // Tags of the input paths of the last plan read, so that the plan is only deserialized once per task
+    private static String cachedPlan = null;
+    private static Map<String, String> cachedTags = null;
+
+    /**
+     * Returns the tag of the table containing file, from the job properties or else from the plan.
+     */
+    static synchronized String getTag(Path file, JobConf jobConf) throws IOException {
+        String tagKey = jobConf.get(TAG_KEY);
+        if (tagKey != null) {
+            return tagKey;
+        }
+        String plan = HiveConf.getVar(jobConf, HiveConf.ConfVars.PLAN);
+        if (cachedTags == null || plan == null || !plan.equals(cachedPlan)) {
+            Map<String, String> tags = new HashMap<String, String>();
+            try {
+                for (Map.Entry<String, PartitionDesc> entry : Utilities.getMapRedWork(jobConf).getPathToPartitionInfo().entrySet()) {
+                    String tag = entry.getValue().getTableDesc().getProperties().getProperty(TAG_KEY);
+                    if (tag != null) {
+                        tags.put(new Path(entry.getKey()).toUri().getPath(), tag);
+                    }
+                }
+            } catch (Exception e) {
+                throw new IOException("Unable to retrieve value for " + TAG_KEY, e);
+            }
+            cachedPlan = plan;
+            cachedTags = tags;
+        }
+        for (Path path = file; path != null; path = path.getParent()) {
+            tagKey = cachedTags.get(path.toUri().getPath());
+            if (tagKey != null) {
+                return tagKey;
+            }
+        }
+        throw new IOException("Unable to retrieve value for " + TAG_KEY + " for " + file);
+    }
+
+    /**
+     * Splits the value of xml.tag, a comma separated list of tags
+     */
+    public static String[] getTags(String tagKey) {
+        List<String> tags = new ArrayList<String>();
+        for (String tag : tagKey.split(",")) {
+            tag = tag.trim();
+            if (tag.length() > 0) {
+                tags.add(tag);
+            }
+        }
+        return tags.toArray(new String[tags.size()]);
+    }
+
+    /**
+     * Whether the table uses the indexes of its files. Looking for them costs a few NameNode calls per file,
+     * so tables must opt in.
+     */
+    static boolean readsIndexes(JobConf job) {
+        return job.getBoolean(INDEX_READ_KEY, false) || job.getBoolean(INDEX_WRITE_KEY, false)
+                || job.get(XMLSerde.INDEX_KEY_KEY) != null;
+    }
+
+    /**
+     * Moves the boundaries of the splits of indexed files to record starts
+     */
+    @Override
+    public InputSplit[] getSplits(JobConf job, int numSplits) throws IOException {
+        InputSplit[] splits = super.getSplits(job, numSplits);
+        if (!readsIndexes(job)) {
+            return splits;
+        }
+        List<InputSplit> result = new ArrayList<InputSplit>(splits.length);
+        Path indexedFile = null;
+        XMLIndex index = null;
+        for (InputSplit split : splits) {
+            FileSplit fileSplit = (FileSplit) split;
+            Path file = fileSplit.getPath();
+            if (!file.equals(indexedFile)) {
+                indexedFile = file;
+                index = readIndex(file, job);
+            }
+            if (index == null) {
+                result.add(split);
+                continue;
+            }
+            long start = fileSplit.getStart() == 0 ? 0 : index.nextRecord(fileSplit.getStart());
+            long end = index.nextRecord(fileSplit.getStart() + fileSplit.getLength());
+            if (end > start) {
+                result.add(new FileSplit(file, start, end - start, fileSplit.getLocations()));
+            }
+        }
+        return result.toArray(new InputSplit[result.size()]);
+    }
+
+    private XMLIndex readIndex(Path file, JobConf job) {
+        if (compressionCodecs == null || compressionCodecs.getCodec(file) != null) {
+            return null;
+        }
+        try {
+            // Only the offsets are needed to move the boundaries
+            return XMLIndex.read(file.getFileSystem(job), file, getTag(file, job), false);
+        } catch (Exception e) {
+            LOG.warn("Could not read the index of " + file, e);
+            return null;
+        }
+    }
 
     @Override
     public RecordReader<LongWritable,Text> getRecordReader(InputSplit inputSplit,
                                                            JobConf jobConf,
                                                            Reporter reporter) throws IOException {
-        return new XmlRecordReader((FileSplit) inputSplit, jobConf);
+        return new XmlRecordReader((FileSplit) inputSplit, jobConf, reporter);
     }
 
     @Override
     protected boolean isSplitable(FileSystem fs, Path file) {
-        return false;
+        // Uncompressed files and block compressed files (bzip2) are resynchronized on the start tag,
+        // other compressed streams cannot be seeked
+        if (compressionCodecs == null) {
+            return false;
+        }
+        CompressionCodec codec = compressionCodecs.getCodec(file);
+        return codec == null || codec instanceof SplittableCompressionCodec;
     }
 
     /**
      * XMLRecordReader class to read through a given xml document to output xml
      * blocks as records as specified by the start tag and end tag
      *
+     * A record belongs to the split in which its start tag begins: the reader seeks to
+     * the split start, skips to the first start tag, and stops on the first start tag
+     * found at or after the split end. The last record may therefore be read past the end.
+     *
+     * Splits of a block compressed file are aligned on the compression blocks, and positions
+     * are the compressed positions reported by the codec (the split end is then inclusive).
+     *
+     * A XMLCombinedSplit is read one chunk after the other, with the same scanner and buffers.
+     *
+     * With xml.prefetch.blocks set, files are read and decompressed ahead on a background thread
+     * (see XMLPrefetchInputStream), using at most that many blocks of xml.read.buffer.size bytes.
+     *
+     * Records longer than xml.record.max.size bytes are skipped, or cut to that size when xml.record.truncate
+     * is set, and counted. The record buffer is released after such a record.
+     *
+     * Records not containing the patterns of the filter pushed by XMLHiveStorageHandler are dropped
+     * before being handed to Hive. When the filter selects values of the index key, and the file has
+     * an index, only the records with these keys are read.
+     *
+     * With xml.index.write set, the index of an uncompressed file read entirely is written if it is missing or stale.
+     *
+     * The reader reports its counters (see Counter) at the end of each chunk. The average record size is
+     * RECORD_BYTES / RECORDS_READ. With prefetching, READ_MILLIS is the time spent waiting for the prefetching thread.
+     *
+     * With xml.parse.threads set, records are scanned in batches of xml.parse.batch.size records, whose
+     * column paths are parsed by a pool of threads while the next batches are scanned. The records are
+     * returned in order, as XMLParsedText carrying their values, so that XMLSerde does not parse them again.
+     *
+     * When sampling, the reader of an uncompressed chunk seeks from one sampled block to the next, resynchronizes
+     * on the first start tag of each block and reads a bounded number of records starting in it. When the file has
+     * an index, it seeks directly to the first record of each block.
+     * Compressed chunks are read entirely.
      */
     public static class XmlRecordReader implements
             RecordReader<LongWritable,Text> {
-        private final byte[] startTag;
-        private final byte[] endTag;
-        private final long start;
-        private final long end;
-        private final InputStream fsin;
-        private final DataOutputBuffer buffer = new DataOutputBuffer();
+        // Size from which the record buffer is dropped after use
+        private static final int BUFFER_RELEASE_SIZE = 1024 * 1024;
+
+        private final JobConf jobConf;
+        private final CompressionCodecFactory compressionCodecs;
+        private final String tagKey;
+        private final XMLTagScanner scanner;
+        private final Reporter reporter;
+        private DataOutputBuffer buffer = new DataOutputBuffer();
+        private final int blockSize;
+        private final int prefetchBlocks;
+        private final boolean truncateRecords;
+        // Patterns of the filter pushed by XMLHiveStorageHandler, null if none
+        private final XMLRecordFilter filter;
+        // Index keys selected by the pushed filter, null if none
+        private final Set<String> lookupKeys;
+        private final String indexKey;
+        private final boolean writeIndex;
+        // One block out of sampleEvery is read, 0 to read everything
+        private final int sampleEvery;
+        private final long sampleBlockSize;
+        private final int sampleRecords;
+
+        private final FileSplit[] chunks;
+        private final long totalLength;
+        private int chunk = -1;
+        private long chunksLength;  // Length of the chunks already read
+
+        // Current chunk
+        private long start;
+        private long end;
+        // Offset from which no record may start in this chunk
+        private long recordsEnd;
+        private InputStream fsin;
+        // Position in the compressed file, null when not compressed
+        private Seekable compressedPosition;
+        private Decompressor decompressor;
+        // Records of the chunk read through its index, null to scan the chunk
+        private FSDataInputStream fileIn;
+        private long[] lookupOffsets;
+        private int lookup;
+        // Index of the chunk being built, null if none
+        private XMLIndex.Builder indexBuilder;
+        private FileStatus indexedFile;
+        // Current sampled block of the chunk, sampleBlockEnd is 0 when the chunk is not sampled
+        private long sampleBlockEnd;
+        // Index of the sampled chunk, null if none
+        private XMLIndex sampleIndex;
+        private int sampledRecords;
+        private boolean compressed;
+
+        // Statistics not yet reported
+        private long records;
+        private long recordBytes;
+        private long maxRecordBytes;
+        private long nextNanos;
+        // Scanner statistics already reported
+        private long reportedBytes;
+        private long reportedReadNanos;
+        private long reportedNearMisses;
+
+        // Parallel parsing, parsePool is null when the serde parses the records
+        private ExecutorService parsePool;
+        private int parseBatchSize;
+        private int maxParseBatches;
+        private String[] paths;
+        private boolean[] projection;
+        private final ArrayDeque<Future<ParseBatch>> parsing = new ArrayDeque<Future<ParseBatch>>();
+        private final ArrayDeque<ParseBatch> freeBatches = new ArrayDeque<ParseBatch>();
+        private ParseBatch parsed;
+        private int parsedIndex;
+        private boolean scanned;
+        private final LongWritable scanKey = new LongWritable();
+        private final Text scanValue = new Text();
 
         public XmlRecordReader(FileSplit split, JobConf jobConf) throws IOException {
-            String tagKey = jobConf.get(TAG_KEY);
-            if (tagKey == null) {
-                try {
-                    Properties tableProperties = Utilities.getMapRedWork(jobConf).getPathToPartitionInfo().get(getInputPaths(jobConf)[0].toString()).getTableDesc().getProperties() ;
-                    tagKey = tableProperties.getProperty(TAG_KEY);
-                }   catch (Exception e) {
-                    throw new IOException("Unable to retrieve value for " + TAG_KEY, e);
-                }
-                if (tagKey == null) {
-                    throw new IOException("Unable to retrieve value for " + TAG_KEY);
+            this(split, jobConf, Reporter.NULL);
+        }
+
+        public XmlRecordReader(FileSplit split, JobConf jobConf, Reporter reporter) throws IOException {
+            this.jobConf = jobConf;
+            this.reporter = reporter;
+            this.compressionCodecs = new CompressionCodecFactory(jobConf);
+            if (split instanceof XMLCombinedSplit) {
+                chunks = ((XMLCombinedSplit) split).getChunks();
+            } else {
+                chunks = new FileSplit[] { split };
+            }
+            long length = 0;
+            for (FileSplit fileSplit : chunks) {
+                length += fileSplit.getLength();
+            }
+            totalLength = length;
+
+            // All the chunks come from the same directory, hence the same table
+            tagKey = getTag(split.getPath(), jobConf);
+            blockSize = jobConf.getInt(BUFFER_SIZE_KEY, XMLTagScanner.DEFAULT_BLOCK_SIZE);
+            prefetchBlocks = jobConf.getInt(PREFETCH_BLOCKS_KEY, 0);
+            scanner = new XMLTagScanner(getTags(tagKey), blockSize);
+            int maxRecordSize = jobConf.getInt(MAX_RECORD_SIZE_KEY, 0);
+            if (maxRecordSize > 0) {
+                scanner.setMaxRecordSize(maxRecordSize);
+            }
+            truncateRecords = jobConf.getBoolean(TRUNCATE_RECORDS_KEY, false);
+            String indexKeyColumn = jobConf.get(INDEX_KEY_COLUMN_KEY);
+            String filterExpr = jobConf.get(TableScanDesc.FILTER_EXPR_CONF_STR);
+            if (filterExpr != null) {
+                ExprNodeDesc expr = Utilities.deserializeExpression(filterExpr, jobConf);
+                filter = XMLRecordFilter.fromExpression(expr, indexKeyColumn);
+                lookupKeys = XMLRecordFilter.indexKeys(expr, indexKeyColumn);
+            } else {
+                filter = null;
+                lookupKeys = null;
+            }
+            indexKey = jobConf.get(XMLSerde.INDEX_KEY_KEY);
+            writeIndex = jobConf.getBoolean(INDEX_WRITE_KEY, false);
+            float samplePercent = jobConf.getFloat(SAMPLE_PERCENT_KEY, 0);
+            if (samplePercent > 0 && samplePercent < 100) {
+                sampleEvery = (int) Math.ceil(100 / samplePercent);
+            } else {
+                sampleEvery = jobConf.getInt(SAMPLE_EVERY_KEY, 0);
+            }
+            sampleBlockSize = jobConf.getLong(SAMPLE_BLOCK_SIZE_KEY, 1024 * 1024);
+            sampleRecords = jobConf.getInt(SAMPLE_RECORDS_KEY, 100);
+            int parseThreads = jobConf.getInt(PARSE_THREADS_KEY, 0);
+            if (parseThreads > 0) {
+                startParsing(parseThreads);
+            }
+
+            nextChunk();
+        }
+
+        /**
+         * Closes the current chunk and opens the next one
+         * @return false if there is no more chunk
+         */
+        private boolean nextChunk() throws IOException {
+            if (chunk >= 0) {
+                chunksLength += chunks[chunk].getLength();
+                if (indexBuilder != null) {
+                    writeIndex(chunks[chunk].getPath());
                 }
+                closeChunk();
+            }
+            chunk++;
+            if (chunk >= chunks.length) {
+                return false;
             }
-            String startTagString = "<" + tagKey;
-            String endTagString = "</" + tagKey + ">";
-            startTag = startTagString.getBytes("utf-8");
-            endTag = endTagString.getBytes("utf-8");
+            FileSplit split = chunks[chunk];
 
             // open the file and seek to the start of the split
-            start = split.getStart();
-            end = start + split.getLength();
+            long splitStart = split.getStart();
+            long splitEnd = splitStart + split.getLength();
             Path file = split.getPath();
             FileSystem fs = file.getFileSystem(jobConf);
+            FSDataInputStream fileIn = fs.open(file);
 
-
-            CompressionCodecFactory compressionCodecs = new CompressionCodecFactory(jobConf);
             CompressionCodec codec = compressionCodecs.getCodec(file);
-
-            if (codec != null) {
-                fsin = codec.createInputStream(fs.open(split.getPath()));
+            compressed = codec != null;
+
+            if (codec instanceof SplittableCompressionCodec) {
+                decompressor = CodecPool.getDecompressor(codec);
+                SplitCompressionInputStream cIn = ((SplittableCompressionCodec) codec).createInputStream(fileIn,
+                        decompressor, splitStart, splitEnd, SplittableCompressionCodec.READ_MODE.BYBLOCK);
+                fsin = cIn;
+                start = cIn.getAdjustedStart();
+                end = cIn.getAdjustedEnd();
+                // Records starting in the last compressed block belong to this split
+                recordsEnd = end + 1;
+                compressedPosition = cIn;
+                LOG.info("Initialized XmlRecordReader with splittable codec " + codec.getClass().getName() +  " with tag " + tagKey + " to " + split.getPath().toString() +  " " + start + " " + end );
+            } else if (codec != null) {
+                decompressor = CodecPool.getDecompressor(codec);
+                fsin = codec.createInputStream(fileIn, decompressor);
+                start = splitStart;
+                end = splitEnd;
+                // The file is not splitable: the whole stream belongs to this split
+                recordsEnd = Long.MAX_VALUE;
+                compressedPosition = (Seekable) fsin;
                 LOG.info("Initialized XmlRecordReader with codec " + codec.getClass().getName() +  " with tag " + tagKey + " to " + split.getPath().toString() +  " " + start + " " + end );
             } else {
-                fsin = fs.open(split.getPath());
-                ((FSDataInputStream)fsin).seek(start);
+                fileIn.seek(splitStart);
+                fsin = fileIn;
+                start = splitStart;
+                end = splitEnd;
+                recordsEnd = end;
+                compressedPosition = null;
                 LOG.info("Initialized XmlRecordReader with no codec  with tag " + tagKey + " to " + split.getPath().toString() +  " " + start + " " + end );
+                openIndex(fs, file, fileIn);
+                if (sampleEvery > 1 && lookupOffsets == null) {
+                    this.fileIn = fileIn;
+                    if (sampleIndex != null) {
+                        LOG.info("Sampling " + file + " from its index");
+                    }
+                    sampleBlockEnd = start + sampleBlockSize;
+                    sampledRecords = 0;
+                }
+            }
 
+            if (prefetchBlocks > 0 && lookupOffsets == null && sampleBlockEnd == 0) {
+                XMLPrefetchInputStream prefetch = new XMLPrefetchInputStream(fsin, compressedPosition, prefetchBlocks, blockSize);
+                fsin = prefetch;
+                if (compressedPosition != null) {
+                    compressedPosition = prefetch;
+                }
+            }
+            if (codec instanceof SplittableCompressionCodec) {
+                scanner.reset(fsin, compressedPosition);
+            } else {
+                scanner.reset(fsin, codec != null ? 0 : start);
             }
+            return true;
         }
 
+        /**
+         * Looks the records up in the index of an uncompressed chunk, keeps the index to sample the chunk,
+         * or prepares to build the index
+         */
+        private void openIndex(FileSystem fs, Path file, FSDataInputStream fileIn) throws IOException {
+            if (!readsIndexes(jobConf) || (lookupKeys == null && !writeIndex && sampleEvery <= 1)) {
+                return;
+            }
+            XMLIndex index = XMLIndex.read(fs, file, tagKey, lookupKeys != null);
+            sampleIndex = sampleEvery > 1 ? index : null;
+            if (index != null && lookupKeys != null && !index.getKeyAttribute().equals(indexKey != null ? indexKey : "")) {
+                LOG.info("Ignoring the keys of the index of " + file + ", built on '" + index.getKeyAttribute()
+                        + "' instead of '" + indexKey + "'");
+                lookupOffsets = null;
+            } else if (index != null && lookupKeys != null) {
+                lookupOffsets = index.find(lookupKeys, start, recordsEnd);
+                if (lookupOffsets != null) {
+                    LOG.info("Reading " + lookupOffsets.length + " records of " + file + " from its index");
+                    this.fileIn = fileIn;
+                    lookup = 0;
+                }
+            }
+            if (index == null && writeIndex && sampleEvery <= 1 && start == 0) {
+                FileStatus status = fs.getFileStatus(file);
+                if (end == status.getLen()) {
+                    indexBuilder = new XMLIndex.Builder(indexKey);
+                    indexedFile = status;
+                }
+            }
+        }
 
-        protected long pos() throws IOException {
-            return ((Seekable) fsin).getPos();
+        private void writeIndex(Path file) {
+            try {
+                XMLIndex index = indexBuilder.build(indexedFile, tagKey, indexKey);
+                index.write(file.getFileSystem(jobConf), file);
+                LOG.info("Wrote the index of " + file + ", " + index.getOffsets().length + " records");
+            } catch (IOException e) {
+                LOG.warn("Could not write the index of " + file, e);
+            }
+        }
 
+        /**
+         * Moves to the next record start of the chunk
+         */
+        private boolean nextStartTag() throws IOException {
+            if (sampleBlockEnd > 0) {
+                return nextSampledStartTag();
+            }
+            if (lookupOffsets == null) {
+                return scanner.nextStartTag(recordsEnd);
+            }
+            if (lookup >= lookupOffsets.length) {
+                return false;
+            }
+            long offset = lookupOffsets[lookup++];
+            fileIn.seek(offset);
+            scanner.reset(fileIn, offset);
+            return scanner.nextStartTag(offset + 1);
         }
 
-        protected boolean readUntilSlashOrOpenTag(LongWritable key, Text value, int b) throws IOException {
+        /**
+         * Moves to the next record start of the current sampled block, or of the next ones
+         */
+        private boolean nextSampledStartTag() throws IOException {
             while (true) {
-                if (b == -1) {
+                if (sampledRecords < sampleRecords && scanner.nextStartTag(Math.min(sampleBlockEnd, recordsEnd))) {
+                    sampledRecords++;
+                    return true;
+                }
+                long blockStart = sampleBlockEnd - sampleBlockSize + sampleEvery * sampleBlockSize;
+                if (blockStart >= recordsEnd) {
                     return false;
                 }
-                writeToBuffer(b);
-                if (b == (int) '/') {
-                    b = fsin.read();
-                    writeToBuffer(b);
-                    if (b == (int) '>') {
-                        key.set(pos());
-                        value.set(buffer.getData(), 0, buffer.getLength());
-                        return true;
+                // The first record of the block, when the file has an index
+                long recordStart = sampleIndex != null ? sampleIndex.nextRecord(blockStart) : blockStart;
+                fileIn.seek(recordStart);
+                scanner.reset(fileIn, recordStart);
+                sampleBlockEnd = blockStart + sampleBlockSize;
+                sampledRecords = 0;
+            }
+        }
+
+        private void closeChunk() throws IOException {
+            lookupOffsets = null;
+            fileIn = null;
+            sampleIndex = null;
+            indexBuilder = null;
+            sampleBlockEnd = 0;
+            if (compressedPosition != null) {
+                reporter.incrCounter(Counter.BYTES_READ, compressedPosition.getPos() - start);
+                compressedPosition = null;
+            }
+            reportCounters();
+            try {
+                if (fsin != null) {
+                    fsin.close();
+                    fsin = null;
+                }
+            } finally {
+                if (decompressor != null) {
+                    CodecPool.returnDecompressor(decompressor);
+                    decompressor = null;
+                }
+            }
+        }
+
+        protected long pos() throws IOException {
+            return scanner.getPosition();
+        }
+
+        private void reportCounters() {
+            long bytes = scanner.getBytesRead();
+            reporter.incrCounter(compressed ? Counter.BYTES_DECOMPRESSED : Counter.BYTES_READ, bytes - reportedBytes);
+            reportedBytes = bytes;
+            long readNanos = scanner.getReadNanos() - reportedReadNanos;
+            reportedReadNanos += readNanos;
+            reporter.incrCounter(Counter.READ_MILLIS, readNanos / 1000000);
+            reporter.incrCounter(Counter.SCAN_MILLIS, Math.max(0, nextNanos - readNanos) / 1000000);
+            reporter.incrCounter(Counter.NEAR_MISS_TAGS, scanner.getNearMisses() - reportedNearMisses);
+            reportedNearMisses = scanner.getNearMisses();
+            reporter.incrCounter(Counter.RECORDS_READ, records);
+            reporter.incrCounter(Counter.RECORD_BYTES, recordBytes);
+            Counters.Counter max = reporter.getCounter(Counter.RECORD_MAX_BYTES);
+            if (max != null && maxRecordBytes > max.getValue()) {
+                max.increment(maxRecordBytes - max.getValue());
+            }
+            nextNanos = 0;
+            records = 0;
+            recordBytes = 0;
+        }
+
+        /**
+         * Records scanned by the reader thread, and parsed by a pool thread
+         */
+        private class ParseBatch implements Callable<ParseBatch> {
+            final XMLRecordParser parser;
+            final long[] keys = new long[parseBatchSize];
+            final byte[][] data = new byte[parseBatchSize][];
+            final int[] lengths = new int[parseBatchSize];
+            final String[][] values = new String[parseBatchSize][];
+            int size;
+
+            ParseBatch() {
+                parser = new XMLRecordParser(paths);
+                parser.setProjection(projection);
+            }
+
+            void add(long key, Text record) {
+                if (data[size] == null || data[size].length < record.getLength()) {
+                    data[size] = new byte[record.getLength()];
+                }
+                System.arraycopy(record.getBytes(), 0, data[size], 0, record.getLength());
+                lengths[size] = record.getLength();
+                keys[size] = key;
+                size++;
+            }
+
+            @Override
+            public ParseBatch call() {
+                for (int i = 0; i < size; i++) {
+                    if (values[i] == null) {
+                        values[i] = new String[paths.length];
                     }
+                    parser.parse(data[i], lengths[i], values[i]);
+                }
+                return this;
+            }
+        }
+
+        private void startParsing(int threads) {
+            String columns = jobConf.get(serdeConstants.LIST_COLUMNS);
+            if (columns == null || columns.length() == 0) {
+                LOG.warn("The columns of the table are unknown, records will not be parsed in parallel");
+                return;
+            }
+            String[] columnNames = columns.split(",");
+            String tagColumn = jobConf.get(XMLSerde.TAG_COLUMN_KEY);
+            paths = new String[columnNames.length];
+            projection = XMLSerde.getProjection(jobConf, columnNames.length);
+            boolean parsedColumns = false;
+            for (int i = 0; i < columnNames.length; i++) {
+                if (!columnNames[i].equalsIgnoreCase(tagColumn)) {
+                    paths[i] = jobConf.get(XMLSerde.PATH_KEY_PREFIX + columnNames[i]);
                 }
+                parsedColumns |= paths[i] != null && (projection == null || projection[i]);
+            }
+            if (!parsedColumns) {
+                return;
+            }
+            parseBatchSize = jobConf.getInt(PARSE_BATCH_SIZE_KEY, 256);
+            // Enough batches for the threads to parse while the next ones are scanned
+            maxParseBatches = 2 * threads;
+            parsePool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "xml-parse");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
 
-                if (b == (int) '>') {
+        /**
+         * Returns the next parsed record, scanning and submitting batches so that all the parsing threads are busy
+         */
+        private boolean nextParsed(LongWritable key, Text value) throws IOException {
+            while (parsed == null || parsedIndex >= parsed.size) {
+                if (parsed != null) {
+                    freeBatches.add(parsed);
+                    parsed = null;
+                }
+                while (!scanned && parsing.size() < maxParseBatches) {
+                    ParseBatch batch = freeBatches.isEmpty() ? new ParseBatch() : freeBatches.poll();
+                    batch.size = 0;
+                    while (batch.size < parseBatchSize && nextRecord(scanKey, scanValue)) {
+                        batch.add(scanKey.get(), scanValue);
+                    }
+                    scanned = batch.size < parseBatchSize;
+                    if (batch.size > 0) {
+                        parsing.add(parsePool.submit(batch));
+                    } else {
+                        freeBatches.add(batch);
+                    }
+                }
+                if (parsing.isEmpty()) {
                     return false;
                 }
-                b = fsin.read();
-           }
+                try {
+                    parsed = parsing.poll().get();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while parsing records", e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Could not parse records", e.getCause());
+                }
+                parsedIndex = 0;
+            }
+            key.set(parsed.keys[parsedIndex]);
+            value.set(parsed.data[parsedIndex], 0, parsed.lengths[parsedIndex]);
+            if (value instanceof XMLParsedText) {
+                ((XMLParsedText) value).setValues(parsed.values[parsedIndex]);
+            }
+            parsedIndex++;
+            return true;
         }
 
         @Override
         public boolean next(LongWritable key, Text value) throws IOException {
-            if (true || pos() < end) { // we do not support split
-                if (readUntilMatch(startTag, false)) {
-                    try {
-
-                        int b = fsin.read();
-                        if (Character.isLetterOrDigit(b)) {
-                            return next(key, value);  // <TAGS> should not  match <TAG !!
-                        }
-                        buffer.write(startTag);
-
-
-                        // Are we in <TAG />  or <TAG> ... </TAG> ?
-
-                        if (readUntilSlashOrOpenTag(key, value, b)) {
-                            //LOG.info("Key:" + key.toString() + " Value:" + value.toString());
-                            return true;
-                        }
+            long begin = System.nanoTime();
+            try {
+                if (parsePool != null) {
+                    return nextParsed(key, value);
+                }
+                if (value instanceof XMLParsedText) {
+                    // A value created by another reader of the split
+                    ((XMLParsedText) value).setValues(null);
+                }
+                return nextRecord(key, value);
+            } finally {
+                nextNanos += System.nanoTime() - begin;
+            }
+        }
 
-                        // Read until match tag...
-                        if (readUntilMatch(endTag, true)) {
+        private boolean nextRecord(LongWritable key, Text value) throws IOException {
+            if (chunk < chunks.length) {
+                do {
+                    while (nextStartTag()) {
+                        try {
+                            if (!scanner.readRecord(buffer)) {
+                                break;
+                            }
+                            if (indexBuilder != null) {
+                                indexBuilder.add(scanner.getRecordStart(), buffer.getData(), buffer.getLength());
+                            }
+                            if (scanner.isTruncated()) {
+                                if (!truncateRecords) {
+                                    reporter.incrCounter(Counter.OVERSIZED_RECORDS_SKIPPED, 1);
+                                    continue;
+                                }
+                                reporter.incrCounter(Counter.OVERSIZED_RECORDS_TRUNCATED, 1);
+                            }
+                            if (filter != null && !filter.accept(buffer.getData(), buffer.getLength())) {
+                                reporter.incrCounter(Counter.RECORDS_FILTERED, 1);
+                                continue;
+                            }
                             key.set(pos());
                             value.set(buffer.getData(), 0, buffer.getLength());
-
-                            //String s = value.toString();
-                            //LOG.info("Key:" + key.toString() + " Begin:" + s.substring(0, Math.min(s.length(), 10))
-                            //+ " End:" + s.substring(s.length() - Math.min(s.length(), 10), s.length()) + "#");
+                            records++;
+                            recordBytes += buffer.getLength();
+                            maxRecordBytes = Math.max(maxRecordBytes, buffer.getLength());
                             return true;
+                        } finally {
+                            releaseBuffer();
                         }
-                    } finally {
-                        buffer.reset();
                     }
-                }
+                } while (nextChunk());
             }
             LOG.info("No Match startTag");
 
             return false;
         }
 
+        /**
+         * Empties the buffer, and drops it when a big record made it grow, so that it does not hold memory until the end
+         */
+        private void releaseBuffer() {
+            if (buffer.getData().length > Math.max(blockSize, BUFFER_RELEASE_SIZE)) {
+                buffer = new DataOutputBuffer();
+            } else {
+                buffer.reset();
+            }
+        }
+
         @Override
         public LongWritable createKey() {
             return new LongWritable();
@@ -192,7 +813,7 @@ public class XMLHiveInputFormat extends TextInputFormat {
 
         @Override
         public Text createValue() {
-            return new Text();
+            return parsePool != null ? new XMLParsedText() : new Text();
         }
 
         @Override
@@ -202,41 +823,23 @@ public class XMLHiveInputFormat extends TextInputFormat {
 
         @Override
         public void close() throws IOException {
-            fsin.close();
+            if (parsePool != null) {
+                parsePool.shutdownNow();
+            }
+            closeChunk();
         }
 
         @Override
         public float getProgress() throws IOException {
-            return (pos() - start) / (float) (end - start);
-        }
-
-        private void writeToBuffer(int b) throws IOException {
-            if (b == '\n') {
-                buffer.write(' ');
-            } else if (b != '\r') {
-                buffer.write(b);
+            if (totalLength == 0 || chunk >= chunks.length) {
+                return chunk >= chunks.length ? 1.0f : 0.0f;
             }
-        }
-
-        private boolean readUntilMatch(byte[] match, boolean withinBlock) throws IOException {
-            int i = 0;
-            while (true) {
-                int b = fsin.read();
-                // end of file:
-                if (b == -1) return false;
-                // save to buffer:
-                if (withinBlock) {
-                    writeToBuffer(b);
-                }
-
-                // check if we're matching:
-                if (b == match[i]) {
-                    i++;
-                    if (i >= match.length) return true;
-                } else i = 0;
-                // see if we've passed the stop point:
-                // if (!withinBlock && i == 0  && pos() >= end) return false; // we do not support split
+            float chunkProgress = 0.0f;
+            if (end > start) {
+                long position = compressedPosition != null ? compressedPosition.getPos() : pos();
+                chunkProgress = Math.min(1.0f, (position - start) / (float) (end - start));
             }
+            return Math.min(1.0f, (chunksLength + chunkProgress * chunks[chunk].getLength()) / totalLength);
         }
     }
-}
\ No newline at end of file
+}
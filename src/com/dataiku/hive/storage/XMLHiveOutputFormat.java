@@ -0,0 +1,63 @@
+package com.dataiku.hive.storage;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.FileSinkOperator.RecordWriter;
+import org.apache.hadoop.hive.ql.exec.Utilities;
+import org.apache.hadoop.hive.ql.io.HiveIgnoreKeyTextOutputFormat;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Writes the records serialized by XMLSerde, one per line, in a root element named by the
+ * xml.root table property ("root" by default).
+ *
+ * Extends HiveIgnoreKeyTextOutputFormat, as Hive only gives compressed output files the extension of their codec
+ * for its subclasses: XMLHiveInputFormat finds the codec of a file from its extension.
+ */
+public class XMLHiveOutputFormat<K extends WritableComparable, V extends Writable>
+        extends HiveIgnoreKeyTextOutputFormat<K, V> {
+
+    public static final String ROOT_KEY = "xml.root";
+
+    @Override
+    public RecordWriter getHiveRecordWriter(JobConf jc, Path outPath, Class<? extends Writable> valueClass,
+                                            boolean isCompressed, Properties tableProperties,
+                                            Progressable progress) throws IOException {
+        String root = tableProperties.getProperty(ROOT_KEY, "root");
+        FileSystem fs = outPath.getFileSystem(jc);
+        final OutputStream out = Utilities.createCompressedStream(jc, fs.create(outPath, progress), isCompressed);
+        final byte[] footer = ("</" + root + ">\n").getBytes("utf-8");
+        out.write(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<" + root + ">\n").getBytes("utf-8"));
+
+        return new RecordWriter() {
+            @Override
+            public void write(Writable r) throws IOException {
+                if (r instanceof Text) {
+                    Text text = (Text) r;
+                    out.write(text.getBytes(), 0, text.getLength());
+                } else {
+                    BytesWritable bytes = (BytesWritable) r;
+                    out.write(bytes.getBytes(), 0, bytes.getLength());
+                }
+                out.write('\n');
+            }
+
+            @Override
+            public void close(boolean abort) throws IOException {
+                if (!abort) {
+                    out.write(footer);
+                }
+                out.close();
+            }
+        };
+    }
+}
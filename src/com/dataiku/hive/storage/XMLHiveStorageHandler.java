@@ -1,23 +1,42 @@
 package com.dataiku.hive.storage;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hive.metastore.HiveMetaHook;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.metadata.DefaultStorageHandler;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.metadata.HiveStorageHandler;
+import org.apache.hadoop.hive.ql.metadata.HiveStoragePredicateHandler;
+import org.apache.hadoop.hive.ql.plan.ExprNodeDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeGenericFuncDesc;
 import org.apache.hadoop.hive.ql.plan.TableDesc;
 import org.apache.hadoop.hive.ql.security.authorization.HiveAuthorizationProvider;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPAnd;
+import org.apache.hadoop.hive.serde.serdeConstants;
+import org.apache.hadoop.hive.serde2.Deserializer;
 import org.apache.hadoop.hive.serde2.SerDe;
 import org.apache.hadoop.hive.serde2.lazy.LazySimpleSerDe;
 import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.OutputFormat;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 /**
+ * Conjuncts of "raw column = 'constant'" and "raw column LIKE 'pattern'" in the filters are pushed
+ * to the input format, which drops the records not containing the constant or the literal parts
+ * of the pattern (see XMLRecordFilter). The whole filter is still evaluated by Hive.
+ * Equalities on the column mapped to the xml.index.key attribute are looked up in the index.
  */
-public class XMLHiveStorageHandler extends DefaultStorageHandler {
+public class XMLHiveStorageHandler extends DefaultStorageHandler implements HiveStoragePredicateHandler {
+    public static final Log LOG = LogFactory.getLog(XMLHiveStorageHandler.class.getName());
+
     @Override
     public Class<? extends InputFormat> getInputFormatClass() {
     return XMLHiveInputFormat.class;
@@ -30,7 +49,7 @@ public class XMLHiveStorageHandler extends DefaultStorageHandler {
 
     @Override
     public Class<? extends OutputFormat> getOutputFormatClass() {
-        return org.apache.hadoop.hive.ql.io.IgnoreKeyTextOutputFormat.class;
+        return XMLHiveOutputFormat.class;
     }
 
 
@@ -39,6 +58,64 @@ public class XMLHiveStorageHandler extends DefaultStorageHandler {
     public void configureInputJobProperties(TableDesc tableDesc, Map<String, String> jobProperties) {
            super.configureInputJobProperties(tableDesc, jobProperties);    //To change body of overridden methods use File | Settings | File Templates.
         Properties props = tableDesc.getProperties();
-        jobProperties.put(XMLHiveInputFormat.TAG_KEY, props.getProperty(XMLHiveInputFormat.TAG_KEY));
+        // The record readers take the tag from the job, and only fall back to reading the plan without it
+        String tag = props.getProperty(XMLHiveInputFormat.TAG_KEY);
+        if (tag != null) {
+            jobProperties.put(XMLHiveInputFormat.TAG_KEY, tag);
+        }
+        for (String key : new String[] { XMLSerde.INDEX_KEY_KEY, XMLHiveInputFormat.INDEX_WRITE_KEY, XMLHiveInputFormat.INDEX_READ_KEY,
+                XMLHiveInputFormat.SAMPLE_EVERY_KEY, XMLHiveInputFormat.SAMPLE_PERCENT_KEY,
+                XMLHiveInputFormat.SAMPLE_BLOCK_SIZE_KEY, XMLHiveInputFormat.SAMPLE_RECORDS_KEY,
+                XMLHiveInputFormat.PARSE_THREADS_KEY, XMLHiveInputFormat.PARSE_BATCH_SIZE_KEY }) {
+            if (props.getProperty(key) != null) {
+                jobProperties.put(key, props.getProperty(key));
+            }
+        }
+        // The columns, for the readers parsing them in parallel
+        for (String key : props.stringPropertyNames()) {
+            if (key.equals(serdeConstants.LIST_COLUMNS) || key.equals(XMLSerde.TAG_COLUMN_KEY)
+                    || key.startsWith(XMLSerde.PATH_KEY_PREFIX)) {
+                jobProperties.put(key, props.getProperty(key));
+            }
+        }
+        String indexKeyColumn = XMLSerde.getIndexKeyColumn(props);
+        if (indexKeyColumn != null) {
+            jobProperties.put(XMLHiveInputFormat.INDEX_KEY_COLUMN_KEY, indexKeyColumn);
+        }
+    }
+
+    @Override
+    public DecomposedPredicate decomposePredicate(JobConf jobConf, Deserializer deserializer, ExprNodeDesc predicate) {
+        if (!(deserializer instanceof XMLSerde)) {
+            return null;
+        }
+        Set<String> rawColumns = ((XMLSerde) deserializer).getRawColumns();
+        String indexKeyColumn = ((XMLSerde) deserializer).getIndexKeyColumn();
+        List<ExprNodeDesc> conjuncts = new ArrayList<ExprNodeDesc>();
+        XMLRecordFilter.conjuncts(predicate, conjuncts);
+        List<ExprNodeDesc> pushed = new ArrayList<ExprNodeDesc>();
+        for (ExprNodeDesc conjunct : conjuncts) {
+            if (XMLRecordFilter.isPushable(conjunct, rawColumns, indexKeyColumn)) {
+                pushed.add(conjunct);
+            }
+        }
+        if (pushed.isEmpty()) {
+            return null;
+        }
+
+        DecomposedPredicate decomposed = new DecomposedPredicate();
+        if (pushed.size() == 1) {
+            decomposed.pushedPredicate = pushed.get(0);
+        } else {
+            try {
+                decomposed.pushedPredicate = ExprNodeGenericFuncDesc.newInstance(new GenericUDFOPAnd(), pushed);
+            } catch (UDFArgumentException e) {
+                LOG.warn("Could not push the filter " + predicate.getExprString(), e);
+                return null;
+            }
+        }
+        // The pushed filter is only a necessary condition
+        decomposed.residualPredicate = predicate;
+        return decomposed;
     }
 }
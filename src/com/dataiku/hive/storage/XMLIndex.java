@@ -0,0 +1,288 @@
+package com.dataiku.hive.storage;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Offsets of the records of an uncompressed XML file, and optionally the value of a key attribute
+ * of each record. Compressed files are not indexed.
+ *
+ * The index of dir/file is stored in dir/.file.xmlidx (hidden, so that it is not read as table data),
+ * and remembers the length and modification time of the file: it is ignored once the file changes.
+ * Indexes are built by XmlRecordReader when xml.index.write is set, or with:
+ *
+ *   hadoop jar dataiku-hive-udf.jar com.dataiku.hive.storage.XMLIndex TAG [-key ATTRIBUTE] PATH...
+ */
+public class XMLIndex {
+    public static final Log LOG = LogFactory.getLog(XMLIndex.class.getName());
+
+    private static final int MAGIC = 0x584d4c49;
+    private static final int VERSION = 1;
+
+    private final long fileLength;
+    private final long modificationTime;
+    private final String tag;
+    private final String keyAttribute;
+    private final long[] offsets;
+    private final String[] keys;
+
+    public XMLIndex(FileStatus file, String tag, String keyAttribute, long[] offsets, String[] keys) {
+        this.fileLength = file.getLen();
+        this.modificationTime = file.getModificationTime();
+        this.tag = tag;
+        this.keyAttribute = keyAttribute != null ? keyAttribute : "";
+        this.offsets = offsets;
+        this.keys = keys;
+    }
+
+    public static Path indexPath(Path file) {
+        return new Path(file.getParent(), "." + file.getName() + ".xmlidx");
+    }
+
+    /**
+     * Reads the index of a file
+     * @return null if there is no index, or if it was built for another tag or another version of the file
+     */
+    public static XMLIndex read(FileSystem fs, Path file, String tag) throws IOException {
+        return read(fs, file, tag, true);
+    }
+
+    /**
+     * Reads the index of a file
+     * @param withKeys false to only decode the offsets, the index then having no keys
+     * @return null if there is no index, or if it was built for another tag or another version of the file
+     */
+    public static XMLIndex read(FileSystem fs, Path file, String tag, boolean withKeys) throws IOException {
+        Path indexFile = indexPath(file);
+        FSDataInputStream in;
+        try {
+            in = fs.open(indexFile);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            FileStatus status = fs.getFileStatus(file);
+            if (in.readInt() != MAGIC || WritableUtils.readVInt(in) != VERSION) {
+                LOG.warn("Ignoring invalid index " + indexFile);
+                return null;
+            }
+            long fileLength = WritableUtils.readVLong(in);
+            long modificationTime = WritableUtils.readVLong(in);
+            String indexTag = Text.readString(in);
+            if (fileLength != status.getLen() || modificationTime != status.getModificationTime()
+                    || !Arrays.equals(XMLHiveInputFormat.getTags(indexTag), XMLHiveInputFormat.getTags(tag))) {
+                LOG.info("Ignoring stale index " + indexFile);
+                return null;
+            }
+            String keyAttribute = Text.readString(in);
+            int n = WritableUtils.readVInt(in);
+            long[] offsets = new long[n];
+            boolean hasKeys = keyAttribute.length() > 0;
+            String[] keys = hasKeys && withKeys ? new String[n] : null;
+            long offset = 0;
+            for (int i = 0; i < n; i++) {
+                offset += WritableUtils.readVLong(in);
+                offsets[i] = offset;
+                if (keys != null) {
+                    keys[i] = Text.readString(in);
+                } else if (hasKeys) {
+                    WritableUtils.skipFully(in, WritableUtils.readVInt(in));
+                }
+            }
+            return new XMLIndex(status, tag, keys != null ? keyAttribute : null, offsets, keys);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the index next to its file. The index is first written to a temporary file,
+     * so that concurrent readers never see a partial index.
+     */
+    public void write(FileSystem fs, Path file) throws IOException {
+        Path indexFile = indexPath(file);
+        Path tmpFile = new Path(file.getParent(), indexFile.getName() + "." + System.nanoTime() + ".tmp");
+        FSDataOutputStream out = fs.create(tmpFile, true);
+        try {
+            out.writeInt(MAGIC);
+            WritableUtils.writeVInt(out, VERSION);
+            WritableUtils.writeVLong(out, fileLength);
+            WritableUtils.writeVLong(out, modificationTime);
+            Text.writeString(out, tag);
+            Text.writeString(out, keyAttribute);
+            WritableUtils.writeVInt(out, offsets.length);
+            long previous = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                WritableUtils.writeVLong(out, offsets[i] - previous);
+                previous = offsets[i];
+                if (keys != null) {
+                    Text.writeString(out, keys[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        fs.delete(indexFile, false);
+        if (!fs.rename(tmpFile, indexFile)) {
+            fs.delete(tmpFile, false);
+            throw new IOException("Could not write index " + indexFile);
+        }
+    }
+
+    public long[] getOffsets() {
+        return offsets;
+    }
+
+    public String getKeyAttribute() {
+        return keyAttribute;
+    }
+
+    /**
+     * Offset of the first record starting at or after position, or the file length
+     */
+    public long nextRecord(long position) {
+        int i = Arrays.binarySearch(offsets, position);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return i < offsets.length ? offsets[i] : fileLength;
+    }
+
+    /**
+     * Offsets of the records, starting in [start, end), whose key is one of values
+     * @return null if the index has no keys
+     */
+    public long[] find(Collection<String> values, long start, long end) {
+        if (keys == null) {
+            return null;
+        }
+        List<Long> found = new ArrayList<Long>();
+        for (int i = 0; i < offsets.length; i++) {
+            if (offsets[i] >= start && offsets[i] < end && values.contains(keys[i])) {
+                found.add(offsets[i]);
+            }
+        }
+        long[] result = new long[found.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = found.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Collects the offsets and keys of the records of a file, as they are read.
+     *
+     * Keys are extracted with the same parser as the column mapped to the key attribute, so that lookups
+     * find exactly the records whose column has the looked up value. When the key of a record cannot be
+     * found, the index keeps no keys at all, and lookups in the file fall back to a full scan.
+     */
+    public static class Builder {
+        private final XMLRecordParser keyParser;
+        private final String[] key = new String[1];
+        private long[] offsets = new long[1024];
+        private List<String> keys;
+        private int n;
+
+        public Builder(String keyAttribute) {
+            boolean hasKey = keyAttribute != null && keyAttribute.length() > 0;
+            keyParser = hasKey ? new XMLRecordParser(new String[] { "@" + keyAttribute }) : null;
+            keys = hasKey ? new ArrayList<String>() : null;
+        }
+
+        public void add(long offset, byte[] record, int length) {
+            if (n == offsets.length) {
+                offsets = Arrays.copyOf(offsets, 2 * n);
+            }
+            offsets[n++] = offset;
+            if (keys != null) {
+                keyParser.parse(record, length, key);
+                if (key[0] == null) {
+                    LOG.info("No key in the record at " + offset + ", the index will not be used for lookups");
+                    keys = null;
+                } else {
+                    keys.add(key[0]);
+                }
+            }
+        }
+
+        public XMLIndex build(FileStatus file, String tag, String keyAttribute) {
+            return new XMLIndex(file, tag, keys != null ? keyAttribute : null, Arrays.copyOf(offsets, n),
+                    keys != null ? keys.toArray(new String[n]) : null);
+        }
+    }
+
+    /**
+     * Builds the index of a whole uncompressed file
+     */
+    public static XMLIndex build(FileSystem fs, Path file, String tag, String keyAttribute) throws IOException {
+        FileStatus status = fs.getFileStatus(file);
+        XMLTagScanner scanner = new XMLTagScanner(XMLHiveInputFormat.getTags(tag), XMLTagScanner.DEFAULT_BLOCK_SIZE);
+        // Only the start tag is needed
+        scanner.setMaxRecordSize(XMLTagScanner.DEFAULT_BLOCK_SIZE);
+        Builder builder = new Builder(keyAttribute);
+        DataOutputBuffer buffer = new DataOutputBuffer();
+        FSDataInputStream in = fs.open(file);
+        try {
+            scanner.reset(in, 0);
+            while (scanner.nextStartTag(Long.MAX_VALUE)) {
+                buffer.reset();
+                if (!scanner.readRecord(buffer)) {
+                    break;
+                }
+                builder.add(scanner.getRecordStart(), buffer.getData(), buffer.getLength());
+            }
+        } finally {
+            in.close();
+        }
+        return builder.build(status, tag, keyAttribute);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: XMLIndex TAG [-key ATTRIBUTE] PATH...");
+            System.exit(1);
+        }
+        String tag = args[0];
+        String keyAttribute = null;
+        int first = 1;
+        if (args[1].equals("-key") && args.length > 3) {
+            keyAttribute = args[2];
+            first = 3;
+        }
+        Configuration conf = new Configuration();
+        CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+        for (int i = first; i < args.length; i++) {
+            Path path = new Path(args[i]);
+            FileSystem fs = path.getFileSystem(conf);
+            for (FileStatus status : fs.globStatus(path)) {
+                FileStatus[] files = status.isDir() ? fs.listStatus(status.getPath()) : new FileStatus[] { status };
+                for (FileStatus file : files) {
+                    String name = file.getPath().getName();
+                    if (file.isDir() || name.startsWith(".") || name.startsWith("_") || codecs.getCodec(file.getPath()) != null) {
+                        continue;
+                    }
+                    XMLIndex index = build(fs, file.getPath(), tag, keyAttribute);
+                    index.write(fs, file.getPath());
+                    System.out.println(file.getPath() + ": " + index.getOffsets().length + " records");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.dataiku.hive.storage;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Record read by XmlRecordReader, along with the values of its column paths when they were
+ * already extracted by the parsing threads of the reader.
+ */
+public class XMLParsedText extends Text {
+    private String[] values;
+
+    /**
+     * Values of the paths of the columns (see XMLRecordParser.parse), null if the record was not parsed
+     */
+    public String[] getValues() {
+        return values;
+    }
+
+    public void setValues(String[] values) {
+        this.values = values;
+    }
+}
@@ -0,0 +1,181 @@
+package com.dataiku.hive.storage;
+
+import org.apache.hadoop.fs.Seekable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads (and decompresses) a stream on a background thread, into a fixed ring of reusable blocks.
+ *
+ * When the source position is given, each block is filled by a single read and remembers the
+ * position reported after it: getPos() is then the position of the block being consumed, and a
+ * read never returns bytes of two blocks, so that XMLTagScanner attributes positions as with the source.
+ */
+public class XMLPrefetchInputStream extends InputStream implements Seekable {
+
+    private static class Block {
+        final byte[] data;
+        int length;
+        long position;
+        boolean eof;
+        IOException error;
+
+        Block(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private final InputStream source;
+    private final Seekable sourcePosition;
+    private final BlockingQueue<Block> free;
+    private final BlockingQueue<Block> filled;
+    private final Thread reader;
+    private volatile boolean closed;
+
+    private Block current;
+    private int currentPos;
+    private long position;
+
+    /**
+     * @param sourcePosition reports the position of source, may be null
+     */
+    public XMLPrefetchInputStream(InputStream source, Seekable sourcePosition, int blocks, int blockSize) throws IOException {
+        this.source = source;
+        this.sourcePosition = sourcePosition;
+        this.position = sourcePosition != null ? sourcePosition.getPos() : 0;
+        int n = Math.max(2, blocks);
+        free = new ArrayBlockingQueue<Block>(n);
+        filled = new ArrayBlockingQueue<Block>(n + 1);
+        for (int i = 0; i < n; i++) {
+            free.add(new Block(blockSize));
+        }
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                prefetch();
+            }
+        }, "xml-prefetch");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void prefetch() {
+        try {
+            while (!closed) {
+                Block block = free.take();
+                block.length = 0;
+                try {
+                    int read;
+                    do {
+                        read = source.read(block.data, block.length, block.data.length - block.length);
+                        if (read > 0) {
+                            block.length += read;
+                        }
+                    } while (sourcePosition == null && read >= 0 && block.length < block.data.length);
+                    block.eof = read < 0 && block.length == 0;
+                    if (sourcePosition != null) {
+                        block.position = sourcePosition.getPos();
+                    }
+                } catch (IOException e) {
+                    block.error = e;
+                }
+                filled.put(block);
+                if (block.eof || block.error != null) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Makes current a block with remaining bytes
+     * @return false at end of stream
+     * @throws IOException the error of the source, once the bytes read before it are consumed, and again on
+     * every later call: the background thread has stopped after it, so no block will follow
+     */
+    private boolean nextBlock() throws IOException {
+        while (current == null || currentPos >= current.length) {
+            if (current != null) {
+                if (current.eof) {
+                    return false;
+                }
+                if (current.error != null) {
+                    throw current.error;
+                }
+                free.add(current);
+                current = null;
+            }
+            try {
+                current = filled.take();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting for data", e);
+            }
+            currentPos = 0;
+            if (sourcePosition != null) {
+                position = current.position;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBlock()) {
+            return -1;
+        }
+        return current.data[currentPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - currentPos);
+        System.arraycopy(current.data, currentPos, b, off, n);
+        currentPos += n;
+        return n;
+    }
+
+    @Override
+    public long getPos() throws IOException {
+        return position;
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        throw new UnsupportedOperationException("Prefetched streams cannot seek");
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) throws IOException {
+        return false;
+    }
+
+    /**
+     * Stops the background thread, waiting for it so that the source is no longer used, and closes the source
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        reader.interrupt();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            source.close();
+        }
+    }
+}
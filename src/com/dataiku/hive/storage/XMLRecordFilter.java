@@ -0,0 +1,204 @@
+package com.dataiku.hive.storage;
+
+import org.apache.hadoop.hive.ql.plan.ExprNodeColumnDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeConstantDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeGenericFuncDesc;
+import org.apache.hadoop.hive.ql.udf.UDFLike;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFBridge;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPAnd;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPEqual;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Byte patterns that a record must contain to match a pushed predicate.
+ *
+ * The predicates understood are conjunctions of "column = 'constant'" and "column LIKE 'pattern'"
+ * on raw record columns: the constant, or each literal part of the pattern, must then appear in the record.
+ * This is only a necessary condition, the predicate itself still has to be evaluated by Hive.
+ *
+ * Equalities on the column mapped to the index key attribute are also pushed, and looked up in the index
+ * (see XMLIndex) instead.
+ */
+public class XMLRecordFilter {
+    private final byte[][] patterns;
+    private final int[][] shifts;
+
+    private XMLRecordFilter(List<byte[]> patterns) {
+        int n = patterns.size();
+        this.patterns = patterns.toArray(new byte[n][]);
+        this.shifts = new int[n][];
+        for (int i = 0; i < n; i++) {
+            shifts[i] = XMLTagScanner.shifts(this.patterns[i]);
+        }
+    }
+
+    /**
+     * Whether the record data[0, length) contains all the patterns
+     */
+    public boolean accept(byte[] data, int length) {
+        for (int i = 0; i < patterns.length; i++) {
+            if (XMLTagScanner.indexOf(data, 0, length, patterns[i], shifts[i]) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits a predicate into its conjuncts
+     */
+    public static void conjuncts(ExprNodeDesc expr, List<ExprNodeDesc> result) {
+        if (expr instanceof ExprNodeGenericFuncDesc
+                && ((ExprNodeGenericFuncDesc) expr).getGenericUDF() instanceof GenericUDFOPAnd) {
+            for (ExprNodeDesc child : expr.getChildren()) {
+                conjuncts(child, result);
+            }
+        } else {
+            result.add(expr);
+        }
+    }
+
+    /**
+     * Whether a conjunct can be checked on the bytes of a record, or in the index
+     * @param rawColumns names of the columns holding the raw record
+     * @param indexKeyColumn name of the column of the index key, may be null
+     */
+    public static boolean isPushable(ExprNodeDesc expr, Set<String> rawColumns, String indexKeyColumn) {
+        String column = column(expr);
+        if (column == null || constant(expr) == null) {
+            return false;
+        }
+        return rawColumns.contains(column.toLowerCase()) || isIndexKey(expr, column, indexKeyColumn);
+    }
+
+    private static boolean isIndexKey(ExprNodeDesc expr, String column, String indexKeyColumn) {
+        return column.equalsIgnoreCase(indexKeyColumn) && !isLike(expr);
+    }
+
+    /**
+     * @param expr a pushed predicate, made of pushable conjuncts
+     * @param indexKeyColumn name of the column of the index key, whose conjuncts are skipped
+     * @return null if no pattern needs to be checked
+     */
+    public static XMLRecordFilter fromExpression(ExprNodeDesc expr, String indexKeyColumn) throws UnsupportedEncodingException {
+        List<ExprNodeDesc> conjuncts = new ArrayList<ExprNodeDesc>();
+        conjuncts(expr, conjuncts);
+        List<byte[]> patterns = new ArrayList<byte[]>();
+        for (ExprNodeDesc conjunct : conjuncts) {
+            String column = column(conjunct);
+            String constant = column != null ? constant(conjunct) : null;
+            if (constant == null || isIndexKey(conjunct, column, indexKeyColumn)) {
+                continue;
+            }
+            List<String> literals = new ArrayList<String>();
+            if (isLike(conjunct)) {
+                likeLiterals(constant, literals);
+            } else {
+                literals.add(constant);
+            }
+            for (String literal : literals) {
+                if (literal.length() > 0) {
+                    patterns.add(literal.getBytes("utf-8"));
+                }
+            }
+        }
+        return patterns.isEmpty() ? null : new XMLRecordFilter(patterns);
+    }
+
+    /**
+     * The values of the index key required by a pushed predicate
+     * @return null if the predicate does not constrain the index key
+     */
+    public static Set<String> indexKeys(ExprNodeDesc expr, String indexKeyColumn) {
+        if (indexKeyColumn == null) {
+            return null;
+        }
+        List<ExprNodeDesc> conjuncts = new ArrayList<ExprNodeDesc>();
+        conjuncts(expr, conjuncts);
+        Set<String> keys = null;
+        for (ExprNodeDesc conjunct : conjuncts) {
+            String column = column(conjunct);
+            String constant = column != null ? constant(conjunct) : null;
+            if (constant != null && isIndexKey(conjunct, column, indexKeyColumn)) {
+                if (keys == null) {
+                    keys = new HashSet<String>();
+                    keys.add(constant);
+                } else {
+                    // Several equalities: at most one value matches all of them
+                    keys.retainAll(Collections.singleton(constant));
+                }
+            }
+        }
+        return keys;
+    }
+
+    private static boolean isLike(ExprNodeDesc expr) {
+        GenericUDF udf = ((ExprNodeGenericFuncDesc) expr).getGenericUDF();
+        return udf instanceof GenericUDFBridge && ((GenericUDFBridge) udf).getUdfClass() == UDFLike.class;
+    }
+
+    /**
+     * The column compared by an equality or LIKE, null for other expressions
+     */
+    private static String column(ExprNodeDesc expr) {
+        if (!(expr instanceof ExprNodeGenericFuncDesc)) {
+            return null;
+        }
+        GenericUDF udf = ((ExprNodeGenericFuncDesc) expr).getGenericUDF();
+        List<ExprNodeDesc> children = expr.getChildren();
+        if (children.size() != 2) {
+            return null;
+        }
+        if (udf instanceof GenericUDFOPEqual) {
+            for (ExprNodeDesc child : children) {
+                if (child instanceof ExprNodeColumnDesc) {
+                    return ((ExprNodeColumnDesc) child).getColumn();
+                }
+            }
+        } else if (isLike(expr) && children.get(0) instanceof ExprNodeColumnDesc) {
+            return ((ExprNodeColumnDesc) children.get(0)).getColumn();
+        }
+        return null;
+    }
+
+    /**
+     * The string constant compared by an equality or LIKE, null if there is none
+     */
+    private static String constant(ExprNodeDesc expr) {
+        List<ExprNodeDesc> children = expr.getChildren();
+        for (int i = isLike(expr) ? 1 : 0; i < children.size(); i++) {
+            ExprNodeDesc child = children.get(i);
+            if (child instanceof ExprNodeConstantDesc && ((ExprNodeConstantDesc) child).getValue() instanceof String) {
+                return (String) ((ExprNodeConstantDesc) child).getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The literal parts of a LIKE pattern, between the % and _ wildcards (\ escapes a character)
+     */
+    static void likeLiterals(String pattern, List<String> literals) {
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\' && i + 1 < pattern.length()) {
+                literal.append(pattern.charAt(++i));
+            } else if (c == '%' || c == '_') {
+                literals.add(literal.toString());
+                literal.setLength(0);
+            } else {
+                literal.append(c);
+            }
+        }
+        literals.add(literal.toString());
+    }
+}
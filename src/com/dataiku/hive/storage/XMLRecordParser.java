@@ -0,0 +1,191 @@
+package com.dataiku.hive.storage;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Extracts the values of element/attribute paths from an xml record in one streaming pass.
+ *
+ * Paths are relative to the record element: "a/b" is the text of the first &lt;b&gt; element
+ * of the first &lt;a&gt; children, "a/@id" is the id attribute of &lt;a&gt;, and "@id" the id attribute
+ * of the record element. The text of an element includes the text of its descendants.
+ * Parsing stops as soon as all the requested paths are resolved.
+ */
+public class XMLRecordParser {
+    public static final Log LOG = LogFactory.getLog(XMLRecordParser.class.getName());
+
+    private final XMLInputFactory factory;
+    private final String[][] elements;  // Element steps of each path, null if the column is not mapped
+    private final String[] attributes;  // Attribute of each path, null for an element text
+    private boolean[] needed;
+
+    // Parsing state
+    private final List<String> stack = new ArrayList<String>();
+    private final StringBuilder[] captures;
+    private final int[] captureDepth;
+
+    /**
+     * @param paths path of each column, null for columns which are not extracted
+     */
+    public XMLRecordParser(String[] paths) {
+        int n = paths.length;
+        elements = new String[n][];
+        attributes = new String[n];
+        captures = new StringBuilder[n];
+        captureDepth = new int[n];
+        needed = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            if (paths[i] == null) {
+                continue;
+            }
+            elements[i] = elementSteps(paths[i]);
+            attributes[i] = attribute(paths[i]);
+            needed[i] = true;
+        }
+
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    /**
+     * The elements of a path, from the record element
+     */
+    static String[] elementSteps(String path) {
+        List<String> steps = new ArrayList<String>();
+        for (String step : path.split("/")) {
+            step = step.trim();
+            if (step.length() > 0 && !step.equals(".") && !step.startsWith("@")) {
+                steps.add(step);
+            }
+        }
+        return steps.toArray(new String[steps.size()]);
+    }
+
+    /**
+     * The attribute ending a path, null if the path is an element
+     */
+    static String attribute(String path) {
+        String attribute = null;
+        for (String step : path.split("/")) {
+            step = step.trim();
+            if (step.startsWith("@")) {
+                attribute = step.substring(1);
+            }
+        }
+        return attribute;
+    }
+
+    /**
+     * Restricts parsing to the given columns
+     */
+    public void setProjection(boolean[] projection) {
+        for (int i = 0; i < needed.length; i++) {
+            needed[i] = elements[i] != null && (projection == null || projection[i]);
+        }
+    }
+
+    /**
+     * Sets values[i] to the value of the path of column i, or null if absent or not projected.
+     */
+    public void parse(byte[] data, int length, String[] values) {
+        Arrays.fill(values, null);
+        int remaining = 0;
+        for (int i = 0; i < needed.length; i++) {
+            captureDepth[i] = -1;
+            if (needed[i]) {
+                remaining++;
+            }
+        }
+        if (remaining == 0) {
+            return;
+        }
+        stack.clear();
+
+        XMLStreamReader reader = null;
+        try {
+            reader = factory.createXMLStreamReader(new ByteArrayInputStream(data, 0, length));
+            while (remaining > 0 && reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        stack.add(reader.getLocalName());
+                        for (int i = 0; i < needed.length; i++) {
+                            if (!needed[i] || values[i] != null || captureDepth[i] >= 0 || !matches(elements[i])) {
+                                continue;
+                            }
+                            if (attributes[i] != null) {
+                                values[i] = reader.getAttributeValue(null, attributes[i]);
+                                if (values[i] != null) {
+                                    remaining--;
+                                }
+                            } else {
+                                if (captures[i] == null) {
+                                    captures[i] = new StringBuilder();
+                                }
+                                captures[i].setLength(0);
+                                captureDepth[i] = stack.size();
+                            }
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        for (int i = 0; i < needed.length; i++) {
+                            if (captureDepth[i] >= 0) {
+                                captures[i].append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                            }
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        for (int i = 0; i < needed.length; i++) {
+                            if (captureDepth[i] == stack.size()) {
+                                values[i] = captures[i].toString();
+                                captureDepth[i] = -1;
+                                remaining--;
+                            }
+                        }
+                        stack.remove(stack.size() - 1);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (XMLStreamException e) {
+            // Malformed record: the paths which are not resolved yet stay null
+            LOG.debug("Unable to parse record", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // Nothing to release
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the current element is at the given steps below the record element
+     */
+    private boolean matches(String[] steps) {
+        if (stack.size() != steps.length + 1) {
+            return false;
+        }
+        for (int i = 0; i < steps.length; i++) {
+            if (!steps[i].equals(stack.get(i + 1))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,219 @@
+package com.dataiku.hive.storage;
+
+import org.apache.hadoop.hive.serde2.lazy.LazyUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes rows as xml records, the reverse of XMLRecordParser.
+ *
+ * Each column is written at its path: "@id" is an attribute of the record element, "a/b" the text
+ * of a &lt;b&gt; element in a &lt;a&gt; element, and "." the text of the record element. Null columns
+ * are omitted, as well as the elements holding no value. A non null raw record column is written as is,
+ * and the tag column, when set, gives the name of the record element.
+ *
+ * Values are written straight to the output buffer: strings are escaped byte by byte from their Text.
+ */
+public class XMLRecordSerializer {
+
+    private static class Element {
+        final String name;
+        final byte[] nameBytes;
+        final List<byte[]> attributeNames = new ArrayList<byte[]>();
+        final List<Integer> attributeColumns = new ArrayList<Integer>();
+        final List<Element> children = new ArrayList<Element>();
+        // Columns of this element and of its descendants
+        final List<Integer> columns = new ArrayList<Integer>();
+        int textColumn = -1;
+
+        Element(String name) {
+            this.name = name;
+            this.nameBytes = name != null ? bytes(name) : null;
+        }
+    }
+
+    private static final byte[] AMP = bytes("&amp;");
+    private static final byte[] LT = bytes("&lt;");
+    private static final byte[] GT = bytes("&gt;");
+    private static final byte[] QUOT = bytes("&quot;");
+
+    private final Element record;
+    private final byte[] defaultTag;
+    private final int rawColumn;
+    private final int tagColumn;
+    private final Object[] values;
+    private final PrimitiveObjectInspector[] inspectors;
+
+    /**
+     * @param tag name of the record element, unless given by the tag column
+     * @param kinds kind of each column (XMLRow.PATH, RAW or TAG)
+     * @param paths path of each column, null for columns which are not mapped
+     */
+    public XMLRecordSerializer(String tag, int[] kinds, String[] paths) {
+        int n = kinds.length;
+        defaultTag = bytes(tag);
+        record = new Element(null);
+        int raw = -1;
+        int tagIndex = -1;
+        for (int i = 0; i < n; i++) {
+            if (kinds[i] == XMLRow.RAW && raw < 0) {
+                raw = i;
+            } else if (kinds[i] == XMLRow.TAG) {
+                tagIndex = i;
+            }
+            if (kinds[i] != XMLRow.PATH) {
+                continue;
+            }
+            Element element = record;
+            element.columns.add(i);
+            for (String step : XMLRecordParser.elementSteps(paths[i])) {
+                Element child = null;
+                for (Element e : element.children) {
+                    if (e.name.equals(step)) {
+                        child = e;
+                    }
+                }
+                if (child == null) {
+                    child = new Element(step);
+                    element.children.add(child);
+                }
+                element = child;
+                element.columns.add(i);
+            }
+            String attribute = XMLRecordParser.attribute(paths[i]);
+            if (attribute != null) {
+                element.attributeNames.add(bytes(attribute));
+                element.attributeColumns.add(i);
+            } else {
+                element.textColumn = i;
+            }
+        }
+        rawColumn = raw;
+        tagColumn = tagIndex;
+        values = new Object[n];
+        inspectors = new PrimitiveObjectInspector[n];
+    }
+
+    /**
+     * Appends the record of a row to out
+     */
+    public void serialize(Object row, StructObjectInspector oi, DataOutputBuffer out) throws IOException {
+        List<? extends StructField> fields = oi.getAllStructFieldRefs();
+        for (int i = 0; i < values.length && i < fields.size(); i++) {
+            values[i] = oi.getStructFieldData(row, fields.get(i));
+            inspectors[i] = (PrimitiveObjectInspector) fields.get(i).getFieldObjectInspector();
+        }
+
+        if (rawColumn >= 0 && values[rawColumn] != null) {
+            Text raw = text(rawColumn);
+            out.write(raw.getBytes(), 0, raw.getLength());
+            return;
+        }
+        if (tagColumn >= 0 && values[tagColumn] != null) {
+            Text tag = text(tagColumn);
+            writeElement(record, tag.getBytes(), tag.getLength(), out);
+        } else {
+            writeElement(record, defaultTag, defaultTag.length, out);
+        }
+    }
+
+    private void writeElement(Element element, byte[] name, int nameLength, DataOutputBuffer out) throws IOException {
+        out.write('<');
+        out.write(name, 0, nameLength);
+        for (int i = 0; i < element.attributeColumns.size(); i++) {
+            int column = element.attributeColumns.get(i);
+            if (values[column] == null) {
+                continue;
+            }
+            out.write(' ');
+            out.write(element.attributeNames.get(i));
+            out.write('=');
+            out.write('"');
+            writeValue(column, out);
+            out.write('"');
+        }
+        out.write('>');
+        if (element.textColumn >= 0 && values[element.textColumn] != null) {
+            writeValue(element.textColumn, out);
+        }
+        for (Element child : element.children) {
+            if (hasValue(child)) {
+                writeElement(child, child.nameBytes, child.nameBytes.length, out);
+            }
+        }
+        out.write('<');
+        out.write('/');
+        out.write(name, 0, nameLength);
+        out.write('>');
+    }
+
+    private boolean hasValue(Element element) {
+        for (int column : element.columns) {
+            if (values[column] != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeValue(int column, DataOutputBuffer out) throws IOException {
+        if (inspectors[column].getPrimitiveCategory() == PrimitiveObjectInspector.PrimitiveCategory.STRING) {
+            Text text = text(column);
+            escape(text.getBytes(), text.getLength(), out);
+        } else {
+            // Numbers and booleans need no escaping
+            LazyUtils.writePrimitiveUTF8(out, values[column], inspectors[column], false, (byte) 0, null);
+        }
+    }
+
+    private Text text(int column) {
+        return ((StringObjectInspector) inspectors[column]).getPrimitiveWritableObject(values[column]);
+    }
+
+    /**
+     * Writes utf-8 data escaped for text and attribute values. Control characters, which are not allowed in xml, are dropped.
+     */
+    static void escape(byte[] data, int length, DataOutputBuffer out) throws IOException {
+        int run = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = data[i];
+            byte[] entity;
+            if (b == '&') {
+                entity = AMP;
+            } else if (b == '<') {
+                entity = LT;
+            } else if (b == '>') {
+                entity = GT;
+            } else if (b == '"') {
+                entity = QUOT;
+            } else if (b >= 0 && b < 0x20 && b != '\t' && b != '\n' && b != '\r') {
+                entity = null;
+            } else {
+                continue;
+            }
+            out.write(data, run, i - run);
+            if (entity != null) {
+                out.write(entity);
+            }
+            run = i + 1;
+        }
+        out.write(data, run, length - run);
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
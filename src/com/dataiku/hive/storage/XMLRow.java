@@ -0,0 +1,199 @@
+package com.dataiku.hive.storage;
+
+import org.apache.hadoop.hive.serde2.io.ByteWritable;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.io.ShortWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Row of an XML table, backed by the record read by XMLHiveInputFormat.
+ *
+ * The raw record columns are the record Text itself, and the tag columns the name of the record tag.
+ * The other columns are parsed all at once, the first time one of them is read, into writables
+ * which are reused from one record to the next.
+ */
+public class XMLRow {
+    /** Kinds of columns */
+    public static final int PATH = 0;
+    public static final int RAW = 1;
+    public static final int TAG = 2;
+
+    private final XMLRecordParser parser;
+    private final PrimitiveCategory[] types;
+    private final int[] kinds;
+    private final Writable[] fields;
+    private final boolean[] present;
+    private final String[] values;
+    private final List<Object> fieldList;
+    private final Text tag = new Text();
+
+    private Text record;
+    private String[] parsedValues;
+    private boolean parsed;
+    private boolean tagParsed;
+
+    public XMLRow(XMLRecordParser parser, PrimitiveCategory[] types, int[] kinds) {
+        this.parser = parser;
+        this.types = types;
+        this.kinds = kinds;
+        int n = types.length;
+        fields = new Writable[n];
+        present = new boolean[n];
+        values = new String[n];
+        fieldList = new ArrayList<Object>(n);
+        for (int i = 0; i < n; i++) {
+            fields[i] = kinds[i] == PATH ? newWritable(types[i]) : null;
+            fieldList.add(null);
+        }
+    }
+
+    /**
+     * Points this row to a new record. The record is not copied and must not change while the row is used.
+     */
+    public void set(Text record) {
+        set(record, null);
+    }
+
+    /**
+     * Points this row to a record whose paths were already parsed
+     * @param parsedValues values of the paths of the columns, null if the record was not parsed
+     */
+    public void set(Text record, String[] parsedValues) {
+        this.record = record;
+        this.parsedValues = parsedValues != null && parsedValues.length == types.length ? parsedValues : null;
+        this.parsed = false;
+        this.tagParsed = false;
+    }
+
+    public Text getRecord() {
+        return record;
+    }
+
+    public Object getField(int i) {
+        if (kinds[i] == RAW) {
+            return record;
+        }
+        if (kinds[i] == TAG) {
+            if (!tagParsed) {
+                parseTag();
+            }
+            return tag;
+        }
+        if (!parsed) {
+            parse();
+        }
+        return present[i] ? fields[i] : null;
+    }
+
+    public List<Object> getFieldsAsList() {
+        for (int i = 0; i < types.length; i++) {
+            fieldList.set(i, getField(i));
+        }
+        return fieldList;
+    }
+
+    private void parse() {
+        String[] v = parsedValues;
+        if (v == null) {
+            parser.parse(record.getBytes(), record.getLength(), values);
+            v = values;
+        }
+        for (int i = 0; i < types.length; i++) {
+            present[i] = kinds[i] == PATH && set(fields[i], v[i], types[i]);
+        }
+        parsed = true;
+    }
+
+    /**
+     * The tag is the name following the leading '<' of the record
+     */
+    private void parseTag() {
+        byte[] data = record.getBytes();
+        int length = record.getLength();
+        int end = 1;
+        while (end < length && data[end] != ' ' && data[end] != '\t' && data[end] != '/' && data[end] != '>') {
+            end++;
+        }
+        tag.set(data, 1, Math.max(0, end - 1));
+        tagParsed = true;
+    }
+
+    static Writable newWritable(PrimitiveCategory type) {
+        switch (type) {
+            case BOOLEAN:
+                return new BooleanWritable();
+            case BYTE:
+                return new ByteWritable();
+            case SHORT:
+                return new ShortWritable();
+            case INT:
+                return new IntWritable();
+            case LONG:
+                return new LongWritable();
+            case FLOAT:
+                return new FloatWritable();
+            case DOUBLE:
+                return new DoubleWritable();
+            case STRING:
+                return new Text();
+            default:
+                throw new IllegalArgumentException("Unsupported type " + type);
+        }
+    }
+
+    /**
+     * Converts the text of an element or attribute to the column type
+     * @return false if the value is absent or invalid
+     */
+    static boolean set(Writable w, String value, PrimitiveCategory type) {
+        if (value == null) {
+            return false;
+        }
+        if (type == PrimitiveCategory.STRING) {
+            ((Text) w).set(value);
+            return true;
+        }
+        String s = value.trim();
+        try {
+            switch (type) {
+                case BOOLEAN:
+                    if (!s.equalsIgnoreCase("true") && !s.equalsIgnoreCase("false")) {
+                        return false;
+                    }
+                    ((BooleanWritable) w).set(s.equalsIgnoreCase("true"));
+                    return true;
+                case BYTE:
+                    ((ByteWritable) w).set(Byte.parseByte(s));
+                    return true;
+                case SHORT:
+                    ((ShortWritable) w).set(Short.parseShort(s));
+                    return true;
+                case INT:
+                    ((IntWritable) w).set(Integer.parseInt(s));
+                    return true;
+                case LONG:
+                    ((LongWritable) w).set(Long.parseLong(s));
+                    return true;
+                case FLOAT:
+                    ((FloatWritable) w).set(Float.parseFloat(s));
+                    return true;
+                case DOUBLE:
+                    ((DoubleWritable) w).set(Double.parseDouble(s));
+                    return true;
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -3,48 +3,189 @@ package com.dataiku.hive.storage;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.serde.serdeConstants;
+import org.apache.hadoop.hive.serde2.ColumnProjectionUtils;
 import org.apache.hadoop.hive.serde2.SerDe;
 import org.apache.hadoop.hive.serde2.SerDeException;
 import org.apache.hadoop.hive.serde2.SerDeStats;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
-import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 /**
  *
- * Serde for
+ * Serde for records produced by XMLHiveInputFormat.
+ *
+ * A column mapped with the "xml.path.COLUMN" property holds the value of that path in the record
+ * (see XMLRecordParser), converted to the column type. The string column named by "xml.tag.column"
+ * holds the tag of the record, useful when xml.tag lists several tags. Another string column without path
+ * holds the raw record.
+ * Rows are lazy (see XMLRow): only the columns read by the query are parsed, when they are first read,
+ * unless the reader already parsed them (see XmlRecordReader).
+ *
+ * Rows are serialized the other way round (see XMLRecordSerializer), as records of the first tag of xml.tag
+ * ("row" by default), which XMLHiveOutputFormat wraps in a root element.
+ *
+ * The raw data size reported in the stats is the size of the last record read or written, which Hive sums over the rows
+ * it reads (when gathering statistics) to get the raw data size of tables and partitions.
  */
 public class XMLSerde implements SerDe {
 
+    public static final String PATH_KEY_PREFIX = "xml.path.";
+    public static final String TAG_COLUMN_KEY = "xml.tag.column";
+    // Attribute of the records whose values are kept in the index (see XMLIndex)
+    public static final String INDEX_KEY_KEY = "xml.index.key";
 
     ObjectInspector oi;
-    List<String> row;
+    XMLRow row;
+    final SerDeStats stats = new SerDeStats();
+    XMLRecordSerializer serializer;
+    final DataOutputBuffer serializeBuffer = new DataOutputBuffer();
+    final Text serialized = new Text();
+    Set<String> rawColumns;
+    String indexKeyColumn;
     public static final Log LOG = LogFactory.getLog(XMLSerde.class.getName());
 
     @Override
     public void initialize(Configuration entries, Properties properties) throws SerDeException {
         List<String> columnNames = new ArrayList<String>();
-        columnNames.add("text");
+        List<TypeInfo> columnTypeInfos = new ArrayList<TypeInfo>();
+        String columnNameProperty = properties.getProperty(serdeConstants.LIST_COLUMNS);
+        String columnTypeProperty = properties.getProperty(serdeConstants.LIST_COLUMN_TYPES);
+        if (columnNameProperty != null && columnNameProperty.length() > 0) {
+            columnNames.addAll(Arrays.asList(columnNameProperty.split(",")));
+            columnTypeInfos.addAll(TypeInfoUtils.getTypeInfosFromTypeString(columnTypeProperty));
+        } else {
+            columnNames.add("text");
+            columnTypeInfos.add(TypeInfoUtils.getTypeInfoFromTypeString(serdeConstants.STRING_TYPE_NAME));
+        }
+
+        int n = columnNames.size();
+        ArrayList<ObjectInspector> columnOIs = new ArrayList<ObjectInspector>(n);
+        PrimitiveCategory[] columnTypes = new PrimitiveCategory[n];
+        int[] kinds = new int[n];
+        rawColumns = new HashSet<String>();
+        String[] paths = new String[n];
+        String tagColumn = properties.getProperty(TAG_COLUMN_KEY);
+        for (int i = 0; i < n; i++) {
+            TypeInfo typeInfo = columnTypeInfos.get(i);
+            if (typeInfo.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+                throw new SerDeException("Column " + columnNames.get(i) + " must have a primitive type, not " + typeInfo.getTypeName());
+            }
+            columnTypes[i] = ((PrimitiveTypeInfo) typeInfo).getPrimitiveCategory();
+            switch (columnTypes[i]) {
+                case BOOLEAN: case BYTE: case SHORT: case INT: case LONG: case FLOAT: case DOUBLE: case STRING:
+                    break;
+                default:
+                    throw new SerDeException("Column " + columnNames.get(i) + " has an unsupported type " + typeInfo.getTypeName());
+            }
+            if (columnNames.get(i).equalsIgnoreCase(tagColumn)) {
+                if (columnTypes[i] != PrimitiveCategory.STRING) {
+                    throw new SerDeException("Tag column " + columnNames.get(i) + " is not a string");
+                }
+                kinds[i] = XMLRow.TAG;
+                columnOIs.add(PrimitiveObjectInspectorFactory.getPrimitiveWritableObjectInspector(columnTypes[i]));
+                continue;
+            }
+            paths[i] = properties.getProperty(PATH_KEY_PREFIX + columnNames.get(i));
+            if (paths[i] == null) {
+                if (columnTypes[i] != PrimitiveCategory.STRING) {
+                    throw new SerDeException("Column " + columnNames.get(i) + " has no " + PATH_KEY_PREFIX + columnNames.get(i) + " property and is not a string");
+                }
+                kinds[i] = XMLRow.RAW;
+                rawColumns.add(columnNames.get(i).toLowerCase());
+            }
+            columnOIs.add(PrimitiveObjectInspectorFactory.getPrimitiveWritableObjectInspector(columnTypes[i]));
+        }
+
+        boolean[] projection = getProjection(entries, n);
 
-        ArrayList<ObjectInspector> columnOIs = new ArrayList<ObjectInspector>(columnNames.size());
+        indexKeyColumn = getIndexKeyColumn(properties);
 
-        columnOIs.add(PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+        String tags = properties.getProperty(XMLHiveInputFormat.TAG_KEY);
+        String[] tagList = tags != null ? XMLHiveInputFormat.getTags(tags) : new String[0];
+        serializer = new XMLRecordSerializer(tagList.length > 0 ? tagList[0] : "row", kinds, paths);
 
-        oi = ObjectInspectorFactory.getStandardStructObjectInspector(columnNames, columnOIs);
-        row = new ArrayList<String>();
-        row.add(null);
+        XMLRecordParser parser = new XMLRecordParser(paths);
+        parser.setProjection(projection);
+
+        oi = new XMLStructObjectInspector(columnNames, columnOIs);
+        row = new XMLRow(parser, columnTypes, kinds);
+    }
+
+    /**
+     * Columns read by the query, null when all of them are read or when it is unknown
+     */
+    static boolean[] getProjection(Configuration conf, int n) {
+        if (conf == null || conf.get(ColumnProjectionUtils.READ_COLUMN_IDS_CONF_STR) == null) {
+            return null;
+        }
+        List<Integer> ids = ColumnProjectionUtils.getReadColumnIDs(conf);
+        if (ids.isEmpty()) {
+            return null;
+        }
+        boolean[] projection = new boolean[n];
+        for (Integer id : ids) {
+            if (id < n) {
+                projection[id] = true;
+            }
+        }
+        return projection;
+    }
+
+    /**
+     * Names (lower case) of the columns holding the raw record
+     */
+    public Set<String> getRawColumns() {
+        return rawColumns;
+    }
+
+    /**
+     * Name (lower case) of the column mapped to the index key attribute, null if there is none
+     */
+    public String getIndexKeyColumn() {
+        return indexKeyColumn;
+    }
+
+    static String getIndexKeyColumn(Properties properties) {
+        String key = properties.getProperty(INDEX_KEY_KEY);
+        String columnNameProperty = properties.getProperty(serdeConstants.LIST_COLUMNS);
+        if (key == null || columnNameProperty == null) {
+            return null;
+        }
+        for (String column : columnNameProperty.split(",")) {
+            if (("@" + key).equals(properties.getProperty(PATH_KEY_PREFIX + column))) {
+                return column.toLowerCase();
+            }
+        }
+        return null;
     }
 
     @Override
     public Object deserialize(Writable blob) throws SerDeException {
-        Text rowText = (Text) blob;
-         row.set(0, rowText.toString());
+        Text record = (Text) blob;
+        if (blob instanceof XMLParsedText) {
+            // Parsed by the reader, when it parses in parallel
+            row.set(record, ((XMLParsedText) blob).getValues());
+        } else {
+            row.set(record);
+        }
+        stats.setRawDataSize(record.getLength());
         return row;
     }
 
@@ -55,7 +196,7 @@ public class XMLSerde implements SerDe {
 
     @Override
     public SerDeStats getSerDeStats() {
-        return null;
+        return stats;
     }
 
     @Override
@@ -65,7 +206,17 @@ public class XMLSerde implements SerDe {
 
     @Override
     public Writable serialize(Object o, ObjectInspector objectInspector) throws SerDeException {
-        throw new SerDeException("Not implemented");
-
+        if (objectInspector.getCategory() != ObjectInspector.Category.STRUCT) {
+            throw new SerDeException("Cannot serialize " + objectInspector.getTypeName() + ", only structs");
+        }
+        serializeBuffer.reset();
+        try {
+            serializer.serialize(o, (StructObjectInspector) objectInspector, serializeBuffer);
+        } catch (IOException e) {
+            throw new SerDeException(e);
+        }
+        serialized.set(serializeBuffer.getData(), 0, serializeBuffer.getLength());
+        stats.setRawDataSize(serialized.getLength());
+        return serialized;
     }
 }
@@ -0,0 +1,92 @@
+package com.dataiku.hive.storage;
+
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inspects the XMLRow objects produced by XMLSerde: fields are only parsed when read.
+ */
+public class XMLStructObjectInspector extends StructObjectInspector {
+
+    static class XMLStructField implements StructField {
+        private final int index;
+        private final String name;
+        private final ObjectInspector oi;
+
+        XMLStructField(int index, String name, ObjectInspector oi) {
+            this.index = index;
+            this.name = name.toLowerCase();
+            this.oi = oi;
+        }
+
+        @Override
+        public String getFieldName() {
+            return name;
+        }
+
+        @Override
+        public ObjectInspector getFieldObjectInspector() {
+            return oi;
+        }
+
+        @Override
+        public String getFieldComment() {
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return index + ":" + name;
+        }
+    }
+
+    private final List<XMLStructField> fields;
+
+    public XMLStructObjectInspector(List<String> names, List<ObjectInspector> ois) {
+        fields = new ArrayList<XMLStructField>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            fields.add(new XMLStructField(i, names.get(i), ois.get(i)));
+        }
+    }
+
+    @Override
+    public List<? extends StructField> getAllStructFieldRefs() {
+        return fields;
+    }
+
+    @Override
+    public StructField getStructFieldRef(String name) {
+        return ObjectInspectorUtils.getStandardStructFieldRef(name, fields);
+    }
+
+    @Override
+    public Object getStructFieldData(Object data, StructField fieldRef) {
+        if (data == null) {
+            return null;
+        }
+        return ((XMLRow) data).getField(((XMLStructField) fieldRef).index);
+    }
+
+    @Override
+    public List<Object> getStructFieldsDataAsList(Object data) {
+        if (data == null) {
+            return null;
+        }
+        return ((XMLRow) data).getFieldsAsList();
+    }
+
+    @Override
+    public String getTypeName() {
+        return ObjectInspectorUtils.getStandardStructTypeName(this);
+    }
+
+    @Override
+    public Category getCategory() {
+        return Category.STRUCT;
+    }
+}
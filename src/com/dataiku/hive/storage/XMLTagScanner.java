@@ -0,0 +1,501 @@
+package com.dataiku.hive.storage;
+
+import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Scans a stream for xml records delimited by a start and an end tag.
+ *
+ * The stream is read by blocks. Tags are located with a Boyer-Moore-Horspool search over the
+ * block, and the bytes of a record are copied to the output by ranges, new lines being replaced
+ * by spaces (and carriage returns removed) during the copy.
+ *
+ * Records longer than the max record size are cut while they are copied, the remaining bytes
+ * only being scanned for the end tag, so that a huge or unterminated record cannot exhaust the memory.
+ *
+ * With several tags, start tags are found by matching the names following each '&lt;' with a trie
+ * (an Aho-Corasick automaton, whose failure links all go back to the root since names cannot
+ * contain '&lt;'), so that all the tags are found in a single pass.
+ *
+ * When reading a split compressed stream, positions are the compressed positions reported by the
+ * stream: each read only returns bytes of one compressed block, so the bytes of a read are
+ * attributed to the position reported after it.
+ */
+public class XMLTagScanner {
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private final byte[][] startTags;
+    private final byte[][] endTags;
+    private final int[] startTagShifts;
+    private final int[][] endTagShifts;
+
+    // Trie of the tag names, matched after a '<' when there are several tags: trie[node][b] is the
+    // node reached with byte b (0 if none), trieTag[node] the tag ending at node (-1 if none)
+    private final int[][] trie;
+    private final int[] trieTag;
+    private final int maxStartTagLength;
+
+    private InputStream in;
+    private byte[] block;
+    private int blockPos;       // Next byte to scan in block
+    private int blockLength;    // Number of valid bytes in block
+    private long blockOffset;   // Stream offset of block[0]
+    private boolean eof;
+
+    // Compressed position of the bytes from block[segmentIndex[i]], null when not compressed
+    private Seekable filePosition;
+    private int[] segmentIndex = new int[4];
+    private long[] segmentPosition = new long[4];
+    private int segments;
+
+    private long recordStart;
+    private int tag;
+
+    // Records are cut after this many bytes
+    private int maxRecordSize = Integer.MAX_VALUE;
+    private boolean truncated;
+
+    // Statistics, since the creation of the scanner
+    private long bytesRead;
+    private long readNanos;
+    private long nearMisses;
+    private boolean nearMiss;
+
+    /**
+     * @param tags names of the tags delimiting records
+     */
+    public XMLTagScanner(String[] tags, int blockSize) throws UnsupportedEncodingException {
+        int n = tags.length;
+        startTags = new byte[n][];
+        endTags = new byte[n][];
+        endTagShifts = new int[n][];
+        int maxLength = 0;
+        int maxStartLength = 0;
+        for (int i = 0; i < n; i++) {
+            startTags[i] = ("<" + tags[i]).getBytes("utf-8");
+            endTags[i] = ("</" + tags[i] + ">").getBytes("utf-8");
+            endTagShifts[i] = shifts(endTags[i]);
+            maxLength = Math.max(maxLength, endTags[i].length);
+            maxStartLength = Math.max(maxStartLength, startTags[i].length);
+        }
+        maxStartTagLength = maxStartLength;
+        startTagShifts = shifts(startTags[0]);
+        block = new byte[Math.max(blockSize, 4 * maxLength)];
+
+        List<int[]> nodes = new ArrayList<int[]>();
+        List<Integer> nodeTags = new ArrayList<Integer>();
+        nodes.add(new int[256]);
+        nodeTags.add(-1);
+        for (int i = 0; i < n; i++) {
+            int node = 0;
+            for (int j = 1; j < startTags[i].length; j++) {
+                int b = startTags[i][j] & 0xff;
+                if (nodes.get(node)[b] == 0) {
+                    nodes.get(node)[b] = nodes.size();
+                    nodes.add(new int[256]);
+                    nodeTags.add(-1);
+                }
+                node = nodes.get(node)[b];
+            }
+            nodeTags.set(node, i);
+        }
+        trie = nodes.toArray(new int[nodes.size()][]);
+        trieTag = new int[nodeTags.size()];
+        for (int i = 0; i < trieTag.length; i++) {
+            trieTag[i] = nodeTags.get(i);
+        }
+    }
+
+    /**
+     * Starts scanning a new stream
+     * @param in stream to read, positioned at offset
+     * @param offset offset of the stream, used to report positions
+     */
+    public void reset(InputStream in, long offset) {
+        reset(in, offset, null);
+    }
+
+    /**
+     * Starts scanning a new compressed stream
+     * @param filePosition reports the compressed position of in, positions are then taken from it
+     */
+    public void reset(InputStream in, Seekable filePosition) throws IOException {
+        reset(in, 0, filePosition);
+        addSegment(0, filePosition.getPos());
+    }
+
+    private void reset(InputStream in, long offset, Seekable filePosition) {
+        this.in = in;
+        this.blockOffset = offset;
+        this.filePosition = filePosition;
+        this.blockPos = 0;
+        this.blockLength = 0;
+        this.eof = false;
+        this.segments = 0;
+    }
+
+    /**
+     * Position of the next byte to scan
+     */
+    public long getPosition() {
+        return positionOf(blockPos);
+    }
+
+    /**
+     * Position of the start tag of the current record
+     */
+    public long getRecordStart() {
+        return recordStart;
+    }
+
+    /**
+     * Bytes of a record copied by readRecord at most, the rest of the record being scanned without copy
+     */
+    public void setMaxRecordSize(int maxRecordSize) {
+        this.maxRecordSize = maxRecordSize;
+    }
+
+    /**
+     * Whether the last record read was longer than the max record size, and was cut
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Bytes read from the streams
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Time spent waiting for the streams, in nanoseconds
+     */
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+    /**
+     * Number of tags starting with a record tag name, but with a longer name (&lt;TAGS&gt; for &lt;TAG&gt;)
+     */
+    public long getNearMisses() {
+        return nearMisses;
+    }
+
+    /**
+     * Index of the tag of the current record
+     */
+    public int getTag() {
+        return tag;
+    }
+
+    /**
+     * Moves after the next start tag beginning before limit.
+     * @return false if there is no such tag
+     */
+    public boolean nextStartTag(long limit) throws IOException {
+        if (startTags.length == 1) {
+            return nextSingleStartTag(limit);
+        }
+        while (true) {
+            int found = indexOf(block, blockPos, blockLength, (byte) '<');
+            if (found < 0) {
+                blockPos = blockLength;
+                if (positionOf(blockPos) >= limit || !fill()) {
+                    return false;
+                }
+                continue;
+            }
+            if (positionOf(found) >= limit) {
+                blockPos = found;
+                return false;
+            }
+            if (found + maxStartTagLength >= blockLength && !eof) {
+                // We may need up to the byte following the longest tag name
+                blockPos = found;
+                fill();
+                continue;
+            }
+            int match = matchTag(found + 1);
+            if (match < 0) {
+                if (nearMiss) {
+                    nearMisses++;
+                }
+                blockPos = found + 1;
+                continue;
+            }
+            tag = match;
+            recordStart = positionOf(found);
+            blockPos = found + startTags[match].length;
+            return true;
+        }
+    }
+
+    /**
+     * Runs the trie from block[from]
+     * @return the longest tag whose name is followed by a byte which cannot continue a name, or -1
+     */
+    private int matchTag(int from) {
+        int node = 0;
+        int match = -1;
+        nearMiss = false;
+        for (int i = from; ; i++) {
+            if (trieTag[node] >= 0 && i < blockLength) {
+                if (!Character.isLetterOrDigit(block[i] & 0xff)) {
+                    match = trieTag[node];
+                } else {
+                    nearMiss = true;
+                }
+            }
+            if (i >= blockLength) {
+                return match;
+            }
+            node = trie[node][block[i] & 0xff];
+            if (node == 0) {
+                return match;
+            }
+        }
+    }
+
+    private boolean nextSingleStartTag(long limit) throws IOException {
+        byte[] startTag = startTags[0];
+        int m = startTag.length;
+        while (true) {
+            int found = indexOf(block, blockPos, blockLength, startTag, startTagShifts);
+            if (found < 0) {
+                // The last m - 1 bytes may be the beginning of a tag
+                blockPos = Math.max(blockPos, blockLength - m + 1);
+                if (positionOf(blockPos) >= limit || !fill()) {
+                    return false;
+                }
+                continue;
+            }
+            if (positionOf(found) >= limit) {
+                blockPos = found;
+                return false;
+            }
+            if (found + m >= blockLength) {
+                // We need the byte following the tag name
+                blockPos = found;
+                if (!fill()) {
+                    blockPos = blockLength;
+                    return false;
+                }
+                continue;
+            }
+            if (Character.isLetterOrDigit(block[found + m] & 0xff)) {
+                // <TAGS> should not  match <TAG !!
+                nearMisses++;
+                blockPos = found + m;
+                continue;
+            }
+            tag = 0;
+            recordStart = positionOf(found);
+            blockPos = found + m;
+            return true;
+        }
+    }
+
+    /**
+     * Copies the record whose start tag was just found to out.
+     * @return false if the stream ends before the end of the record
+     */
+    public boolean readRecord(DataOutputBuffer out) throws IOException {
+        truncated = false;
+        copy(out, startTags[tag], 0, startTags[tag].length);
+
+        // Are we in <TAG />  or <TAG> ... </TAG> ?
+        byte previous = 0;
+        while (true) {
+            int close = indexOf(block, blockPos, blockLength, (byte) '>');
+            if (close >= 0) {
+                if (close > blockPos) {
+                    previous = block[close - 1];
+                }
+                copy(out, block, blockPos, close + 1);
+                blockPos = close + 1;
+                if (previous == '/') {
+                    return true;
+                }
+                break;
+            }
+            if (blockLength > blockPos) {
+                previous = block[blockLength - 1];
+            }
+            copy(out, block, blockPos, blockLength);
+            blockPos = blockLength;
+            if (!fill()) {
+                return false;
+            }
+        }
+
+        // Read until end tag
+        byte[] endTag = endTags[tag];
+        int m = endTag.length;
+        while (true) {
+            int found = indexOf(block, blockPos, blockLength, endTag, endTagShifts[tag]);
+            if (found >= 0) {
+                copy(out, block, blockPos, found + m);
+                blockPos = found + m;
+                return true;
+            }
+            // The last m - 1 bytes may be the beginning of the end tag
+            int safe = Math.max(blockPos, blockLength - m + 1);
+            copy(out, block, blockPos, safe);
+            blockPos = safe;
+            if (!fill()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Keeps the unscanned bytes at the beginning of the block and reads more bytes after them.
+     * @return false at end of stream
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (blockPos > 0) {
+            System.arraycopy(block, blockPos, block, 0, blockLength - blockPos);
+            blockOffset += blockPos;
+            blockLength -= blockPos;
+            shiftSegments(blockPos);
+            blockPos = 0;
+        }
+        if (blockLength == block.length) {
+            block = Arrays.copyOf(block, 2 * block.length);
+        }
+        long readStart = System.nanoTime();
+        int read = in.read(block, blockLength, block.length - blockLength);
+        readNanos += System.nanoTime() - readStart;
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        if (filePosition != null) {
+            addSegment(blockLength, filePosition.getPos());
+        }
+        blockLength += read;
+        bytesRead += read;
+        return true;
+    }
+
+    private long positionOf(int index) {
+        if (filePosition == null) {
+            return blockOffset + index;
+        }
+        int s = segments - 1;
+        while (s > 0 && segmentIndex[s] > index) {
+            s--;
+        }
+        return segmentPosition[s];
+    }
+
+    private void addSegment(int index, long position) {
+        if (segments > 0 && segmentPosition[segments - 1] == position) {
+            return;
+        }
+        if (segments == segmentIndex.length) {
+            segmentIndex = Arrays.copyOf(segmentIndex, 2 * segments);
+            segmentPosition = Arrays.copyOf(segmentPosition, 2 * segments);
+        }
+        segmentIndex[segments] = index;
+        segmentPosition[segments] = position;
+        segments++;
+    }
+
+    /**
+     * Follows the removal of the first n bytes of the block
+     */
+    private void shiftSegments(int n) {
+        int first = 0;
+        while (first + 1 < segments && segmentIndex[first + 1] <= n) {
+            first++;
+        }
+        for (int i = first; i < segments; i++) {
+            segmentIndex[i - first] = Math.max(0, segmentIndex[i] - n);
+            segmentPosition[i - first] = segmentPosition[i];
+        }
+        segments -= first;
+    }
+
+    /**
+     * Copies data[from, to) to out, up to the max record size, replacing new lines by spaces
+     * and removing carriage returns
+     */
+    private void copy(DataOutputBuffer out, byte[] data, int from, int to) throws IOException {
+        int room = maxRecordSize - out.getLength();
+        if (to - from > room) {
+            // Removed carriage returns may leave the record a little shorter than the max
+            truncated = true;
+            to = from + Math.max(0, room);
+        }
+        int run = from;
+        for (int i = from; i < to; i++) {
+            byte b = data[i];
+            if (b == '\n' || b == '\r') {
+                out.write(data, run, i - run);
+                if (b == '\n') {
+                    out.write(' ');
+                }
+                run = i + 1;
+            }
+        }
+        out.write(data, run, to - run);
+    }
+
+    /**
+     * Boyer-Moore-Horspool bad character shifts of a pattern
+     */
+    static int[] shifts(byte[] pattern) {
+        int m = pattern.length;
+        int[] shifts = new int[256];
+        Arrays.fill(shifts, m);
+        for (int i = 0; i < m - 1; i++) {
+            shifts[pattern[i] & 0xff] = m - 1 - i;
+        }
+        return shifts;
+    }
+
+    /**
+     * Index of the first occurrence of pattern in data[from, to), or -1
+     */
+    static int indexOf(byte[] data, int from, int to, byte[] pattern, int[] shifts) {
+        int last = pattern.length - 1;
+        byte lastByte = pattern[last];
+        int i = from;
+        while (i + last < to) {
+            byte b = data[i + last];
+            if (b == lastByte) {
+                int j = last - 1;
+                while (j >= 0 && data[i + j] == pattern[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += shifts[b & 0xff];
+        }
+        return -1;
+    }
+
+    static int indexOf(byte[] data, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
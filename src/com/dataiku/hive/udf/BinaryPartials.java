@@ -0,0 +1,67 @@
+/**
+ * Copyright 2013 Dataiku
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataiku.hive.udf;
+
+import org.apache.hadoop.hive.ql.session.SessionState;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Compact binary partial results of the UDAFs, enabled for the queries compiled while
+ * dataiku.udaf.binary.partials is set:
+ *
+ *   SET dataiku.udaf.binary.partials=true;
+ *
+ * The setting is read when the evaluator is created, and kept in the evaluator serialized with the plan,
+ * so that all the tasks of a query agree on the format. Evaluators in the merging modes recognize the
+ * format from the object inspector of the partial results.
+ */
+public class BinaryPartials {
+    public static final String BINARY_PARTIALS_KEY = "dataiku.udaf.binary.partials";
+
+    /**
+     * Whether binary partials are enabled in the current session
+     */
+    public static boolean isEnabled() {
+        SessionState session = SessionState.get();
+        return session != null && session.getConf() != null && session.getConf().getBoolean(BINARY_PARTIALS_KEY, false);
+    }
+
+    /**
+     * Writes values[0, n), sorted in increasing order, as variable length deltas
+     */
+    public static void writeDeltas(DataOutput out, long[] values, int n) throws IOException {
+        long previous = 0;
+        for (int i = 0; i < n; i++) {
+            WritableUtils.writeVLong(out, values[i] - previous);
+            previous = values[i];
+        }
+    }
+
+    /**
+     * Reads n values written by writeDeltas into values[0, n)
+     */
+    public static void readDeltas(DataInput in, long[] values, int n) throws IOException {
+        long previous = 0;
+        for (int i = 0; i < n; i++) {
+            previous += WritableUtils.readVLong(in);
+            values[i] = previous;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright 2013 Dataiku
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataiku.hive.udf.maps;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog sketch estimating the number of distinct 64 bit hashes added to it.
+ *
+ * With a precision p, the sketch has 2^p registers of one byte, and the standard error of the
+ * estimate is about 1.04 / sqrt(2^p): 1.6% for the default precision of 12.
+ *
+ * Serialized sketches start with the precision and a format byte. They are dense (one byte per register)
+ * or, when fewer registers are set, sparse (the set registers, as index deltas followed by their value).
+ */
+public class HyperLogLog {
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 16;
+    public static final int DEFAULT_PRECISION = 12;
+
+    private static final byte DENSE = 0;
+    private static final byte SPARSE = 1;
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("Precision must be between " + MIN_PRECISION + " and " + MAX_PRECISION + ", got " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public void add(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        // Position of the first 1 bit in the remaining bits, the guard bit bounds it to 64 - precision + 1
+        int rho = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        if (rho > registers[index]) {
+            registers[index] = (byte) rho;
+        }
+    }
+
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double alpha;
+        if (m == 16) {
+            alpha = 0.673;
+        } else if (m == 32) {
+            alpha = 0.697;
+        } else if (m == 64) {
+            alpha = 0.709;
+        } else {
+            alpha = 0.7213 / (1 + 1.079 / m);
+        }
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // Small range correction: linear counting
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Merges a serialized sketch into this one, register by register
+     */
+    public void merge(byte[] data, int offset, int length) {
+        if (length < 2 || data[offset] != precision) {
+            throw new IllegalArgumentException("Cannot merge a sketch of precision " + (length > 0 ? data[offset] : -1)
+                    + " into a sketch of precision " + precision);
+        }
+        int end = offset + length;
+        int pos = offset + 2;
+        if (data[offset + 1] == DENSE) {
+            for (int i = 0; i < registers.length; i++) {
+                if (data[pos + i] > registers[i]) {
+                    registers[i] = data[pos + i];
+                }
+            }
+        } else {
+            int index = 0;
+            while (pos < end) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    delta |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                index += delta;
+                byte rho = data[pos++];
+                if (rho > registers[index]) {
+                    registers[index] = rho;
+                }
+            }
+        }
+    }
+
+    public byte[] serialize() {
+        int set = 0;
+        for (byte r : registers) {
+            if (r != 0) {
+                set++;
+            }
+        }
+        // A sparse entry takes at most 4 bytes: 3 for the index delta, 1 for the register
+        if (set * 4 >= registers.length) {
+            byte[] data = new byte[2 + registers.length];
+            data[0] = (byte) precision;
+            data[1] = DENSE;
+            System.arraycopy(registers, 0, data, 2, registers.length);
+            return data;
+        }
+        byte[] data = new byte[2 + set * 4];
+        data[0] = (byte) precision;
+        data[1] = SPARSE;
+        int pos = 2;
+        int previous = 0;
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] == 0) {
+                continue;
+            }
+            int delta = i - previous;
+            previous = i;
+            while ((delta & ~0x7f) != 0) {
+                data[pos++] = (byte) ((delta & 0x7f) | 0x80);
+                delta >>>= 7;
+            }
+            data[pos++] = (byte) delta;
+            data[pos++] = registers[i];
+        }
+        return Arrays.copyOf(data, pos);
+    }
+
+    /**
+     * Precision of a serialized sketch
+     */
+    public static int precision(byte[] data, int offset) {
+        return data[offset];
+    }
+
+    /**
+     * Mixes the bits of a long (finalizer of MurmurHash3)
+     */
+    public static long hash(long v) {
+        v ^= v >>> 33;
+        v *= 0xff51afd7ed558ccdL;
+        v ^= v >>> 33;
+        v *= 0xc4ceb9fe1a85ec53L;
+        v ^= v >>> 33;
+        return v;
+    }
+
+    /**
+     * MurmurHash64A of data[offset, offset + length)
+     */
+    public static long hash(byte[] data, int offset, int length) {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+        long h = 0x9747b28cL ^ (length * m);
+        int end = offset + (length & ~7);
+        for (int i = offset; i < end; i += 8) {
+            long k = (data[i] & 0xffL) | (data[i + 1] & 0xffL) << 8 | (data[i + 2] & 0xffL) << 16 | (data[i + 3] & 0xffL) << 24
+                    | (data[i + 4] & 0xffL) << 32 | (data[i + 5] & 0xffL) << 40 | (data[i + 6] & 0xffL) << 48 | (data[i + 7] & 0xffL) << 56;
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h ^= k;
+            h *= m;
+        }
+        int remaining = length & 7;
+        if (remaining > 0) {
+            for (int i = remaining - 1; i >= 0; i--) {
+                h ^= (data[end + i] & 0xffL) << (8 * i);
+            }
+            h *= m;
+        }
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+        return h;
+    }
+}
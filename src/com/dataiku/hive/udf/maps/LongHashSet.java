@@ -0,0 +1,118 @@
+/**
+ * Copyright 2013 Dataiku
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataiku.hive.udf.maps;
+
+import java.util.Arrays;
+
+/**
+ * Set of longs, stored unboxed in an open addressing table (linear probing).
+ */
+public class LongHashSet {
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] slots;
+    private boolean[] used;
+    private int size;
+
+    public LongHashSet() {
+        slots = new long[MIN_CAPACITY];
+        used = new boolean[MIN_CAPACITY];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if v was not already in the set
+     */
+    public boolean add(long v) {
+        int mask = slots.length - 1;
+        int i = hash(v) & mask;
+        while (used[i]) {
+            if (slots[i] == v) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = v;
+        used[i] = true;
+        // Keep the load factor under 1/2
+        if (++size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return true;
+    }
+
+    public boolean contains(long v) {
+        int mask = slots.length - 1;
+        int i = hash(v) & mask;
+        while (used[i]) {
+            if (slots[i] == v) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * The values of the set, in no particular order
+     */
+    public long[] toArray() {
+        long[] result = new long[size];
+        int n = 0;
+        for (int i = 0; i < slots.length; i++) {
+            if (used[i]) {
+                result[n++] = slots[i];
+            }
+        }
+        return result;
+    }
+
+    public void clear() {
+        if (slots.length > MIN_CAPACITY) {
+            slots = new long[MIN_CAPACITY];
+            used = new boolean[MIN_CAPACITY];
+        } else {
+            Arrays.fill(used, false);
+        }
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldSlots = slots;
+        boolean[] oldUsed = used;
+        slots = new long[capacity];
+        used = new boolean[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldSlots.length; j++) {
+            if (oldUsed[j]) {
+                int i = hash(oldSlots[j]) & mask;
+                while (used[i]) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = oldSlots[j];
+                used[i] = true;
+            }
+        }
+    }
+
+    private static int hash(long v) {
+        // Mixed, so that sequential values do not cluster
+        return (int) HyperLogLog.hash(v);
+    }
+}
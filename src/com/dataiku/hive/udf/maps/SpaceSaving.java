@@ -0,0 +1,212 @@
+/**
+ * Copyright 2013 Dataiku
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataiku.hive.udf.maps;
+
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.AbstractPrimitiveWritableObjectInspector;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Space-Saving summary of the keys with the largest sums, using a fixed number of counters.
+ *
+ * Once all the counters are used, a new key takes the counter of the smallest sum, and inherits that sum
+ * as its error. The sum of each kept key is then an overestimate of its true sum by at most its error,
+ * and a key which is not kept has a sum of at most the floor (the smallest kept sum). These bounds hold
+ * for non negative values.
+ *
+ * Summaries are merged by adding the sums and errors of the common keys, the floor of the other summary
+ * to the keys missing from one, and keeping the largest sums (Agarwal et al, "Mergeable summaries").
+ */
+public class SpaceSaving {
+    private final AbstractPrimitiveWritableObjectInspector keyOI;
+    private final int capacity;
+    // Min heap on the sums
+    private final Object[] keys;
+    private final long[] sums;
+    private final long[] errors;
+    private final Map<Object, Integer> index;
+    private int size;
+
+    /**
+     * @param keyOI writable object inspector of the keys, used to copy them
+     */
+    public SpaceSaving(AbstractPrimitiveWritableObjectInspector keyOI, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity must be positive, got " + capacity);
+        }
+        this.keyOI = keyOI;
+        this.capacity = capacity;
+        keys = new Object[capacity];
+        sums = new long[capacity];
+        errors = new long[capacity];
+        index = new HashMap<Object, Integer>(2 * capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Object keyAt(int i) {
+        return keys[i];
+    }
+
+    public long sumAt(int i) {
+        return sums[i];
+    }
+
+    public long errorAt(int i) {
+        return errors[i];
+    }
+
+    /**
+     * Upper bound of the sum of the keys which are not kept
+     */
+    public long floor() {
+        return size == capacity ? sums[0] : 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, null);
+        index.clear();
+        size = 0;
+    }
+
+    /**
+     * Adds a value to the sum of a non null key. The key is copied when it is kept.
+     */
+    public void add(Object key, long value) {
+        Integer i = index.get(key);
+        if (i != null) {
+            sums[i] += value;
+            if (value >= 0) {
+                siftDown(i);
+            } else {
+                siftUp(i);
+            }
+        } else if (size < capacity) {
+            int j = size++;
+            set(j, keyOI.copyObject(key), value, 0);
+            siftUp(j);
+        } else {
+            index.remove(keys[0]);
+            set(0, keyOI.copyObject(key), sums[0] + value, sums[0]);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Merges another summary, given by its kept keys, sums and errors, and its floor
+     */
+    public void merge(Object[] otherKeys, long[] otherSums, long[] otherErrors, int n, long otherFloor) {
+        long ownFloor = floor();
+        int total = size;
+        Object[] allKeys = Arrays.copyOf(keys, size + n);
+        long[] allSums = Arrays.copyOf(sums, size + n);
+        long[] allErrors = Arrays.copyOf(errors, size + n);
+        boolean[] common = new boolean[size];
+        for (int j = 0; j < n; j++) {
+            Integer i = index.get(otherKeys[j]);
+            if (i != null) {
+                common[i] = true;
+                allSums[i] += otherSums[j];
+                allErrors[i] += otherErrors[j];
+            } else {
+                allKeys[total] = keyOI.copyObject(otherKeys[j]);
+                allSums[total] = otherSums[j] + ownFloor;
+                allErrors[total] = otherErrors[j] + ownFloor;
+                total++;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (!common[i]) {
+                allSums[i] += otherFloor;
+                allErrors[i] += otherFloor;
+            }
+        }
+
+        // Keeps the largest sums
+        Integer[] order = new Integer[total];
+        for (int i = 0; i < total; i++) {
+            order[i] = i;
+        }
+        final long[] s = allSums;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return s[a] < s[b] ? 1 : (s[a] > s[b] ? -1 : 0);
+            }
+        });
+        clear();
+        size = Math.min(total, capacity);
+        // Decreasing sums, reversed into a valid min heap
+        for (int j = 0; j < size; j++) {
+            int from = order[j];
+            set(size - 1 - j, allKeys[from], allSums[from], allErrors[from]);
+        }
+    }
+
+    private void set(int i, Object key, long sum, long error) {
+        keys[i] = key;
+        sums[i] = sum;
+        errors[i] = error;
+        index.put(key, i);
+    }
+
+    private void swap(int i, int j) {
+        Object key = keys[i];
+        long sum = sums[i];
+        long error = errors[i];
+        set(i, keys[j], sums[j], errors[j]);
+        set(j, key, sum, error);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (sums[parent] <= sums[i]) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && sums[left] < sums[smallest]) {
+                smallest = left;
+            }
+            if (right < size && sums[right] < sums[smallest]) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright 2013 Dataiku
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataiku.hive.udf.maps;
+
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.AbstractPrimitiveWritableObjectInspector;
+
+import java.util.Arrays;
+
+/**
+ * Sums by key, in an open addressing table (linear probing) with unboxed long or double slots.
+ *
+ * Keys are primitive writables. They are looked up as given, and only copied when they are inserted,
+ * so that the objects reused by the object inspectors can be passed directly.
+ */
+public class SumHashTable {
+    private static final int MIN_CAPACITY = 16;
+
+    private final AbstractPrimitiveWritableObjectInspector keyOI;
+    private final boolean floating;
+    private Object[] keys;
+    private int[] hashes;
+    private long[] longSums;
+    private double[] doubleSums;
+    private int size;
+
+    /**
+     * @param keyOI writable object inspector of the keys, used to copy them
+     * @param floating whether the sums are doubles rather than longs
+     */
+    public SumHashTable(AbstractPrimitiveWritableObjectInspector keyOI, boolean floating) {
+        this.keyOI = keyOI;
+        this.floating = floating;
+        allocate(MIN_CAPACITY);
+    }
+
+    public boolean isFloating() {
+        return floating;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void addLong(Object key, long v) {
+        // The slot is found first: it may reallocate the sums
+        int i = slot(key);
+        longSums[i] += v;
+    }
+
+    public void addDouble(Object key, double v) {
+        int i = slot(key);
+        doubleSums[i] += v;
+    }
+
+    /**
+     * Number of slots, for iterating with keyAt
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return the key of a slot, null if the slot is empty
+     */
+    public Object keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public long longAt(int slot) {
+        return longSums[slot];
+    }
+
+    public double doubleAt(int slot) {
+        return doubleSums[slot];
+    }
+
+    public void clear() {
+        if (keys.length > MIN_CAPACITY) {
+            allocate(MIN_CAPACITY);
+        } else {
+            Arrays.fill(keys, null);
+            if (floating) {
+                Arrays.fill(doubleSums, 0);
+            } else {
+                Arrays.fill(longSums, 0);
+            }
+        }
+        size = 0;
+    }
+
+    /**
+     * Slot of a non null key, inserted with a zero sum if it is new
+     */
+    private int slot(Object key) {
+        int hash = (int) HyperLogLog.hash(key.hashCode());
+        int mask = keys.length - 1;
+        int i = hash & mask;
+        while (keys[i] != null) {
+            if (hashes[i] == hash && keys[i].equals(key)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+            return slot(key);
+        }
+        keys[i] = keyOI.copyObject(key);
+        hashes[i] = hash;
+        size++;
+        return i;
+    }
+
+    private void allocate(int capacity) {
+        keys = new Object[capacity];
+        hashes = new int[capacity];
+        if (floating) {
+            doubleSums = new double[capacity];
+        } else {
+            longSums = new long[capacity];
+        }
+    }
+
+    private void rehash(int capacity) {
+        Object[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        long[] oldLongSums = longSums;
+        double[] oldDoubleSums = doubleSums;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == null) {
+                continue;
+            }
+            int i = oldHashes[j] & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            hashes[i] = oldHashes[j];
+            if (floating) {
+                doubleSums[i] = oldDoubleSums[j];
+            } else {
+                longSums[i] = oldLongSums[j];
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright 2013 Dataiku
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataiku.hive.udf.maps;
+
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.*;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Approximate count_distinct_map, counting the distinct values of each key with a HyperLogLog sketch.
+ * The memory used and the size shuffled per key are bounded by the precision, whatever the number of values.
+ */
+public class UDAFApproxCountDistinctToMap extends AbstractGenericUDAFResolver {
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] tis) throws SemanticException {
+        if (tis.length != 2 && tis.length != 3) {
+            throw new UDFArgumentTypeException(tis.length - 1, "Two or three arguments are expected.");
+        }
+        for (int i = 0; i < tis.length; i++) {
+            if (tis[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+                throw new UDFArgumentTypeException(i, "Only primitive type arguments are accepted.");
+            }
+        }
+        if (tis.length == 3) {
+            PrimitiveObjectInspector.PrimitiveCategory category = ((PrimitiveTypeInfo) tis[2]).getPrimitiveCategory();
+            if (category != PrimitiveObjectInspector.PrimitiveCategory.INT) {
+                throw new UDFArgumentTypeException(2, "The precision must be an int constant.");
+            }
+        }
+        return new ApproxCountDistinctToMap();
+    }
+
+    /**
+     *  approx_count_distinct_map(K key, V value [, int precision])
+     * (key, value) - PARTIAL1 -->  Map<key, binary sketch>
+     * Map<key, binary sketch> - PARTIAL2 --> Map<key, binary sketch>
+     * Map<key, binary sketch> - FINAL --> Map<key, bigint>
+     * (key, value) - COMPLETE --> Map<key, bigint>
+     */
+    public static class ApproxCountDistinctToMap extends GenericUDAFEvaluator {
+        private PrimitiveObjectInspector keyTypeOI;
+        private PrimitiveObjectInspector valueTypeOI;
+        private AbstractPrimitiveWritableObjectInspector keyOutputTypeOI;
+        private MapObjectInspector intermediateMapInputTypeOI;
+        private BinaryObjectInspector sketchInputTypeOI;
+        private int precision = HyperLogLog.DEFAULT_PRECISION;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            super.init(m, parameters);
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                keyTypeOI = (PrimitiveObjectInspector) parameters[0];
+                valueTypeOI = (PrimitiveObjectInspector) parameters[1];
+                keyOutputTypeOI = (AbstractPrimitiveWritableObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(keyTypeOI, ObjectInspectorUtils.ObjectInspectorCopyOption.WRITABLE);
+                if (parameters.length > 2) {
+                    if (!(parameters[2] instanceof ConstantObjectInspector)) {
+                        throw new UDFArgumentTypeException(2, "The precision must be an int constant.");
+                    }
+                    Object constant = ((ConstantObjectInspector) parameters[2]).getWritableConstantValue();
+                    precision = PrimitiveObjectInspectorUtils.getInt(constant, (PrimitiveObjectInspector) parameters[2]);
+                    if (precision < HyperLogLog.MIN_PRECISION || precision > HyperLogLog.MAX_PRECISION) {
+                        throw new UDFArgumentTypeException(2, "The precision must be between " + HyperLogLog.MIN_PRECISION
+                                + " and " + HyperLogLog.MAX_PRECISION + ".");
+                    }
+                }
+            } else {
+                intermediateMapInputTypeOI = (MapObjectInspector) parameters[0];
+                keyOutputTypeOI = (AbstractPrimitiveWritableObjectInspector) intermediateMapInputTypeOI.getMapKeyObjectInspector();
+                sketchInputTypeOI = (BinaryObjectInspector) intermediateMapInputTypeOI.getMapValueObjectInspector();
+            }
+            if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+                return ObjectInspectorFactory.getStandardMapObjectInspector(keyOutputTypeOI,
+                        PrimitiveObjectInspectorFactory.writableBinaryObjectInspector);
+            } else {
+                return ObjectInspectorFactory.getStandardMapObjectInspector(keyOutputTypeOI,
+                        PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+            }
+        }
+
+        class SketchAgg implements AggregationBuffer {
+            Map<Object, HyperLogLog> content = new HashMap<Object, HyperLogLog>();
+
+            /**
+             * Sketch of a key, created with the given precision if the key is new
+             */
+            protected HyperLogLog sketch(Object k, int precision) {
+                HyperLogLog sketch = content.get(k);
+                if (sketch == null) {
+                    sketch = new HyperLogLog(precision);
+                    content.put(keyOutputTypeOI.copyObject(k), sketch);
+                }
+                return sketch;
+            }
+
+            protected void iterate(Object[] parameters) {
+                Object value = parameters[1];
+                if (value == null) {
+                    return;
+                }
+                Object key = keyTypeOI.getPrimitiveWritableObject(parameters[0]);
+                sketch(key, precision).add(hash(value, valueTypeOI));
+            }
+
+            protected Object terminatePartial() {
+                Map<Object, BytesWritable> map = new HashMap<Object, BytesWritable>();
+                for (Map.Entry<Object, HyperLogLog> entry : content.entrySet()) {
+                    map.put(entry.getKey(), new BytesWritable(entry.getValue().serialize()));
+                }
+                return map;
+            }
+
+            protected void merge(Object o) throws HiveException {
+                Map<?, ?> map = intermediateMapInputTypeOI.getMap(o);
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    BytesWritable data = sketchInputTypeOI.getPrimitiveWritableObject(entry.getValue());
+                    if (data == null || data.getLength() < 2) {
+                        continue;
+                    }
+                    HyperLogLog sketch = sketch(entry.getKey(), HyperLogLog.precision(data.getBytes(), 0));
+                    try {
+                        sketch.merge(data.getBytes(), 0, data.getLength());
+                    } catch (IllegalArgumentException e) {
+                        throw new HiveException(e.getMessage());
+                    }
+                }
+            }
+
+            protected Object terminate() {
+                Map<Object, Long> mapFinal = new HashMap<Object, Long>();
+                for (Map.Entry<Object, HyperLogLog> entry : content.entrySet()) {
+                    mapFinal.put(entry.getKey(), Long.valueOf(entry.getValue().estimate()));
+                }
+                return mapFinal;
+            }
+        }
+
+        /**
+         * 64 bit hash of a non null value. Equal values hash the same whatever their object inspector.
+         */
+        static long hash(Object value, PrimitiveObjectInspector oi) {
+            switch (oi.getPrimitiveCategory()) {
+                case BOOLEAN:
+                case BYTE:
+                case SHORT:
+                case INT:
+                case LONG:
+                    return HyperLogLog.hash(PrimitiveObjectInspectorUtils.getLong(value, oi));
+                case FLOAT:
+                case DOUBLE:
+                    return HyperLogLog.hash(Double.doubleToLongBits(PrimitiveObjectInspectorUtils.getDouble(value, oi)));
+                case STRING: {
+                    Text text = ((StringObjectInspector) oi).getPrimitiveWritableObject(value);
+                    return HyperLogLog.hash(text.getBytes(), 0, text.getLength());
+                }
+                case BINARY: {
+                    BytesWritable bytes = ((BinaryObjectInspector) oi).getPrimitiveWritableObject(value);
+                    return HyperLogLog.hash(bytes.getBytes(), 0, bytes.getLength());
+                }
+                default: {
+                    Text text = new Text(PrimitiveObjectInspectorUtils.getString(value, oi));
+                    return HyperLogLog.hash(text.getBytes(), 0, text.getLength());
+                }
+            }
+        }
+
+        @Override
+        public void reset(AggregationBuffer ab) throws HiveException {
+            ((SketchAgg) ab).content.clear();
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new SketchAgg();
+        }
+
+        @Override
+        public void iterate(AggregationBuffer ab, Object[] parameters) throws HiveException {
+            assert (parameters.length == 2 || parameters.length == 3);
+            ((SketchAgg) ab).iterate(parameters);
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer ab) throws HiveException {
+            return ((SketchAgg) ab).terminatePartial();
+        }
+
+        @Override
+        public void merge(AggregationBuffer ab, Object p) throws HiveException {
+            ((SketchAgg) ab).merge(p);
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer ab) throws HiveException {
+            return ((SketchAgg) ab).terminate();
+        }
+    }
+}
@@ -15,22 +15,32 @@
  */
 package com.dataiku.hive.udf.maps;
 
-import org.apache.hadoop.hive.common.classification.InterfaceAudience;
-import org.apache.hadoop.hive.metastore.model.MPartition;
+import com.dataiku.hive.udf.BinaryPartials;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.io.ByteWritable;
+import org.apache.hadoop.hive.serde2.io.ShortWritable;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.*;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.WritableUtils;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class UDAFCountDistinctToMap extends AbstractGenericUDAFResolver {
     @Override
@@ -38,7 +48,9 @@ public class UDAFCountDistinctToMap extends AbstractGenericUDAFResolver {
         if (tis.length != 2) {
             throw new UDFArgumentTypeException(tis.length - 1, "Exactly two arguments is expected.");
         }
-        return new CountDistinctToMap();
+        CountDistinctToMap evaluator = new CountDistinctToMap();
+        evaluator.setBinaryPartials(BinaryPartials.isEnabled());
+        return evaluator;
     }
 
     /**
@@ -47,6 +59,11 @@ public class UDAFCountDistinctToMap extends AbstractGenericUDAFResolver {
      * Map<key, Value[]> - PARTIAL2 --> Map<key, Value[]>
      * Map<key, Value[]> - FINAL --> Map<key, Int>
      * (key, value) - COMPLETE --> Map<key, Int>
+     *
+     * With binary partials, the partial results are struct<keys: array<key>, values: array<value>, data: binary>.
+     * The values array is a dictionary of the distinct values, and data gives, for each key in order, its
+     * number of values followed by their sorted dictionary indexes as deltas. Integral values are written
+     * directly in data as sorted deltas, and the dictionary is left empty.
      */
     public static class CountDistinctToMap extends GenericUDAFEvaluator {
         private PrimitiveObjectInspector keyTypeOI;
@@ -59,6 +76,33 @@ public class UDAFCountDistinctToMap extends AbstractGenericUDAFResolver {
         private StandardMapObjectInspector intermediateMapOutputTypeOI;
         private StandardMapObjectInspector finalMapTypeOI;
 
+        private boolean binaryPartials;
+        private StructObjectInspector binaryPartialInputTypeOI;
+        private StructField keysField;
+        private StructField valuesField;
+        private StructField dataField;
+        private ListObjectInspector keyListInputTypeOI;
+        private BinaryObjectInspector dataInputTypeOI;
+
+        /**
+         * Whether the partial results are serialized in the compact format (see BinaryPartials).
+         * A bean property, so that it is kept with the plan.
+         */
+        public boolean isBinaryPartials() {
+            return binaryPartials;
+        }
+
+        public void setBinaryPartials(boolean binaryPartials) {
+            this.binaryPartials = binaryPartials;
+        }
+
+        private ObjectInspector binaryPartialOutputTypeOI() {
+            return ObjectInspectorFactory.getStandardStructObjectInspector(Arrays.asList("keys", "values", "data"),
+                    Arrays.<ObjectInspector>asList(ObjectInspectorFactory.getStandardListObjectInspector(keyOutputTypeOI),
+                            ObjectInspectorFactory.getStandardListObjectInspector(valueOutputTypeOI),
+                            PrimitiveObjectInspectorFactory.writableBinaryObjectInspector));
+        }
+
         @Override
         public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
             super.init(m, parameters);
@@ -71,7 +115,7 @@ public class UDAFCountDistinctToMap extends AbstractGenericUDAFResolver {
 
                 valueListOutputTypeOI = ObjectInspectorFactory.getStandardListObjectInspector(valueOutputTypeOI);
                 intermediateMapOutputTypeOI = ObjectInspectorFactory.getStandardMapObjectInspector(keyOutputTypeOI, valueListOutputTypeOI);
-                return intermediateMapOutputTypeOI;
+                return binaryPartials ? binaryPartialOutputTypeOI() : intermediateMapOutputTypeOI;
             } else if (m == Mode.COMPLETE) {
                 keyTypeOI= (PrimitiveObjectInspector) parameters[0];
                 valueTypeOI  = (PrimitiveObjectInspector) parameters[1];
@@ -81,6 +125,23 @@ public class UDAFCountDistinctToMap extends AbstractGenericUDAFResolver {
                 finalMapTypeOI = ObjectInspectorFactory.getStandardMapObjectInspector(keyOutputTypeOI, PrimitiveObjectInspectorFactory.javaLongObjectInspector);
                 /* Input is original data */
                 return finalMapTypeOI;
+            } else if (parameters[0] instanceof StructObjectInspector) {
+                /* Binary partials, in PARTIAL2 or FINAL */
+                binaryPartials = true;
+                binaryPartialInputTypeOI = (StructObjectInspector) parameters[0];
+                keysField = binaryPartialInputTypeOI.getStructFieldRef("keys");
+                valuesField = binaryPartialInputTypeOI.getStructFieldRef("values");
+                dataField = binaryPartialInputTypeOI.getStructFieldRef("data");
+                keyListInputTypeOI = (ListObjectInspector) keysField.getFieldObjectInspector();
+                valueListInputTypeOI = (ListObjectInspector) valuesField.getFieldObjectInspector();
+                dataInputTypeOI = (BinaryObjectInspector) dataField.getFieldObjectInspector();
+                keyOutputTypeOI = (AbstractPrimitiveWritableObjectInspector) keyListInputTypeOI.getListElementObjectInspector();
+                valueOutputTypeOI = (AbstractPrimitiveWritableObjectInspector) valueListInputTypeOI.getListElementObjectInspector();
+                if (m == Mode.PARTIAL2) {
+                    return binaryPartialOutputTypeOI();
+                }
+                finalMapTypeOI = ObjectInspectorFactory.getStandardMapObjectInspector(keyOutputTypeOI, PrimitiveObjectInspectorFactory.javaIntObjectInspector);
+                return finalMapTypeOI;
             } else if (m == Mode.PARTIAL2) {
                 intermediateMapInputTypeOI = (MapObjectInspector) parameters[0];
                 keyOutputTypeOI= (AbstractPrimitiveWritableObjectInspector) intermediateMapInputTypeOI.getMapKeyObjectInspector();
@@ -103,43 +164,170 @@ public class UDAFCountDistinctToMap extends AbstractGenericUDAFResolver {
             }
         }
 
+        /**
+         * The distinct values of each key are kept in hash sets. Integral values are kept unboxed in a
+         * LongHashSet, and only turned back into writables for the partial result.
+         */
         class MapAgg implements AggregationBuffer {
-            Map<Object, ArrayList<Object>> content;
+            final boolean integral;
+            Map<Object, Set<Object>> content;
+            Map<Object, LongHashSet> longContent;
 
             protected MapAgg() {
-                content = new HashMap<Object, ArrayList<Object>>();
+                integral = isIntegral(valueOutputTypeOI.getPrimitiveCategory());
+                if (integral) {
+                    longContent = new HashMap<Object, LongHashSet>();
+                } else {
+                    content = new HashMap<Object, Set<Object>>();
+                }
             }
 
             protected void reset() {
-                content.clear();
+                if (integral) {
+                    longContent.clear();
+                } else {
+                    content.clear();
+                }
             }
 
-            protected void addEntry(Object k, Object v) {
+            /**
+             * Adds a value to the set of a key. The key and value are only copied when they are new,
+             * since the objects given by the inspectors may be reused.
+             */
+            protected void addEntry(Object k, Object v, PrimitiveObjectInspector vOI) {
                 if (v == null) {
                     return;
                 }
+                if (integral) {
+                    longValues(k).add(PrimitiveObjectInspectorUtils.getLong(v, vOI));
+                } else {
+                    Set<Object> vv = values(k);
+                    if (!vv.contains(v)) {
+                        vv.add(valueOutputTypeOI.copyObject(v));
+                    }
+                }
+            }
 
-                ArrayList<Object> vv = content.get(k);
+            protected LongHashSet longValues(Object k) {
+                LongHashSet vv = longContent.get(k);
                 if (vv == null) {
-                    vv = new ArrayList<Object>();
-                    content.put(k, vv);
-
-                }
-                if (!vv.contains(v)) {
-                    vv.add(v);
+                    vv = new LongHashSet();
+                    longContent.put(keyOutputTypeOI.copyObject(k), vv);
                 }
+                return vv;
+            }
 
+            protected Set<Object> values(Object k) {
+                Set<Object> vv = content.get(k);
+                if (vv == null) {
+                    vv = new HashSet<Object>();
+                    content.put(keyOutputTypeOI.copyObject(k), vv);
+                }
+                return vv;
             }
 
             protected void iterate(Object[] parameters) {
                 Object key = parameters[0];
                 Object value = parameters[1];
-                addEntry(keyOutputTypeOI.copyObject(keyTypeOI.getPrimitiveWritableObject(key)),
-                        valueOutputTypeOI.copyObject(valueTypeOI.getPrimitiveWritableObject(value)));
+                if (integral) {
+                    addEntry(keyTypeOI.getPrimitiveWritableObject(key), value, valueTypeOI);
+                } else {
+                    addEntry(keyTypeOI.getPrimitiveWritableObject(key), valueTypeOI.getPrimitiveWritableObject(value), valueOutputTypeOI);
+                }
             }
 
             protected Object terminatePartial() {
-                return content;
+                Map<Object, List<Object>> map = new HashMap<Object, List<Object>>();
+                if (integral) {
+                    PrimitiveObjectInspector.PrimitiveCategory category = valueOutputTypeOI.getPrimitiveCategory();
+                    for (Map.Entry<Object, LongHashSet> entry : longContent.entrySet()) {
+                        long[] values = entry.getValue().toArray();
+                        List<Object> list = new ArrayList<Object>(values.length);
+                        for (long v : values) {
+                            list.add(writable(category, v));
+                        }
+                        map.put(entry.getKey(), list);
+                    }
+                } else {
+                    for (Map.Entry<Object, Set<Object>> entry : content.entrySet()) {
+                        map.put(entry.getKey(), new ArrayList<Object>(entry.getValue()));
+                    }
+                }
+                return map;
+            }
+
+            protected Object terminateBinaryPartial() throws IOException {
+                List<Object> keys = new ArrayList<Object>();
+                List<Object> dictionary = new ArrayList<Object>();
+                DataOutputBuffer data = new DataOutputBuffer();
+                if (integral) {
+                    for (Map.Entry<Object, LongHashSet> entry : longContent.entrySet()) {
+                        long[] values = entry.getValue().toArray();
+                        Arrays.sort(values);
+                        keys.add(entry.getKey());
+                        WritableUtils.writeVInt(data, values.length);
+                        BinaryPartials.writeDeltas(data, values, values.length);
+                    }
+                } else {
+                    Map<Object, Integer> ids = new HashMap<Object, Integer>();
+                    for (Map.Entry<Object, Set<Object>> entry : content.entrySet()) {
+                        long[] values = new long[entry.getValue().size()];
+                        int n = 0;
+                        for (Object v : entry.getValue()) {
+                            Integer id = ids.get(v);
+                            if (id == null) {
+                                id = dictionary.size();
+                                ids.put(v, id);
+                                dictionary.add(v);
+                            }
+                            values[n++] = id;
+                        }
+                        Arrays.sort(values);
+                        keys.add(entry.getKey());
+                        WritableUtils.writeVInt(data, n);
+                        BinaryPartials.writeDeltas(data, values, n);
+                    }
+                }
+                BytesWritable bytes = new BytesWritable();
+                bytes.set(data.getData(), 0, data.getLength());
+                return new Object[] { keys, dictionary, bytes };
+            }
+
+            protected void mergeBinary(Object o) throws IOException {
+                Object keyList = binaryPartialInputTypeOI.getStructFieldData(o, keysField);
+                Object valueList = binaryPartialInputTypeOI.getStructFieldData(o, valuesField);
+                BytesWritable bytes = dataInputTypeOI.getPrimitiveWritableObject(binaryPartialInputTypeOI.getStructFieldData(o, dataField));
+                DataInputBuffer data = new DataInputBuffer();
+                data.reset(bytes.getBytes(), bytes.getLength());
+
+                Object[] dictionary = new Object[integral ? 0 : valueListInputTypeOI.getListLength(valueList)];
+                for (int i = 0; i < dictionary.length; i++) {
+                    dictionary[i] = valueOutputTypeOI.getPrimitiveWritableObject(valueListInputTypeOI.getListElement(valueList, i));
+                }
+                long[] values = new long[16];
+                int nKeys = keyListInputTypeOI.getListLength(keyList);
+                for (int i = 0; i < nKeys; i++) {
+                    Object k = keyOutputTypeOI.getPrimitiveWritableObject(keyListInputTypeOI.getListElement(keyList, i));
+                    int n = WritableUtils.readVInt(data);
+                    if (n > values.length) {
+                        values = new long[Math.max(n, 2 * values.length)];
+                    }
+                    BinaryPartials.readDeltas(data, values, n);
+                    if (integral) {
+                        LongHashSet vv = longValues(k);
+                        for (int j = 0; j < n; j++) {
+                            vv.add(values[j]);
+                        }
+                    } else {
+                        Set<Object> vv = values(k);
+                        for (int j = 0; j < n; j++) {
+                            Object v = dictionary[(int) values[j]];
+                            if (!vv.contains(v)) {
+                                vv.add(valueOutputTypeOI.copyObject(v));
+                            }
+                        }
+                    }
+                }
             }
 
             protected void merge(Object o) {
@@ -148,23 +336,52 @@ public class UDAFCountDistinctToMap extends AbstractGenericUDAFResolver {
                     Object k = entry.getKey();
                     Object v = entry.getValue();
                     for(Object oo : valueListInputTypeOI.getList(v)) {
-                        addEntry(keyOutputTypeOI.copyObject(k), valueOutputTypeOI.copyObject(oo));
+                        addEntry(k, oo, valueOutputTypeOI);
                     }
                 }
             }
 
             protected Object terminate() {
-                Map<Object,ArrayList<Object>> map = content;
                 Map<Object, Integer> mapFinal = new HashMap<Object, Integer>();
-
-                for(Map.Entry<Object, ArrayList<Object>> entry : content.entrySet()) {
-                    mapFinal.put(entry.getKey(), Integer.valueOf(entry.getValue().size()));
+                if (integral) {
+                    for (Map.Entry<Object, LongHashSet> entry : longContent.entrySet()) {
+                        mapFinal.put(entry.getKey(), Integer.valueOf(entry.getValue().size()));
+                    }
+                } else {
+                    for (Map.Entry<Object, Set<Object>> entry : content.entrySet()) {
+                        mapFinal.put(entry.getKey(), Integer.valueOf(entry.getValue().size()));
+                    }
                 }
                 return mapFinal;
             }
 
         }
 
+        private static boolean isIntegral(PrimitiveObjectInspector.PrimitiveCategory category) {
+            switch (category) {
+                case BYTE:
+                case SHORT:
+                case INT:
+                case LONG:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private static Object writable(PrimitiveObjectInspector.PrimitiveCategory category, long v) {
+            switch (category) {
+                case BYTE:
+                    return new ByteWritable((byte) v);
+                case SHORT:
+                    return new ShortWritable((short) v);
+                case INT:
+                    return new IntWritable((int) v);
+                default:
+                    return new LongWritable(v);
+            }
+        }
+
         @Override
         public void reset(AggregationBuffer ab) throws HiveException {
             ((MapAgg) ab).reset();
@@ -183,11 +400,29 @@ public class UDAFCountDistinctToMap extends AbstractGenericUDAFResolver {
 
         @Override
         public Object terminatePartial(AggregationBuffer ab) throws HiveException {
+            if (binaryPartials) {
+                try {
+                    return ((MapAgg) ab).terminateBinaryPartial();
+                } catch (IOException e) {
+                    throw new HiveException(e);
+                }
+            }
             return ((MapAgg) ab).terminatePartial();
         }
 
         @Override
         public void merge(AggregationBuffer ab, Object p) throws HiveException {
+            if (p == null) {
+                return;
+            }
+            if (binaryPartialInputTypeOI != null) {
+                try {
+                    ((MapAgg) ab).mergeBinary(p);
+                } catch (IOException e) {
+                    throw new HiveException(e);
+                }
+                return;
+            }
             ((MapAgg) ab).merge(p);
         }
 
@@ -1,27 +1,29 @@
 package com.dataiku.hive.udf.maps;
 
-import com.google.common.collect.Maps;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
-import org.apache.hadoop.hive.serde2.lazy.LazyFactory;
-import org.apache.hadoop.hive.serde2.lazy.LazyMap;
-import org.apache.hadoop.hive.serde2.lazy.objectinspector.LazyMapObjectInspector;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
-import org.apache.hadoop.hive.serde2.objectinspector.primitive.IntObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.AbstractPrimitiveWritableObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
-import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.MapTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
 
-import java.rmi.MarshalledObject;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
- * Group a set of map and sum identical integer keys
+ * Group a set of map and sum identical keys.
+ *
+ * The keys may be of any primitive type, and the values of any numeric type. As with sum(), the sums of tinyint and
+ * smallint values are bigint, and the sums of float values are double. The sums of int values stay int.
  */
 public class UDAFMapGroupSum extends AbstractGenericUDAFResolver {
     @Override
@@ -29,70 +31,132 @@ public class UDAFMapGroupSum extends AbstractGenericUDAFResolver {
         if (tis.length != 1) {
             throw new UDFArgumentTypeException(tis.length - 1, "Exactly one argument is expected.");
         }
+        if (tis[0].getCategory() != ObjectInspector.Category.MAP) {
+            throw new UDFArgumentTypeException(0, "A map is expected, got " + tis[0].getTypeName());
+        }
+        MapTypeInfo mapType = (MapTypeInfo) tis[0];
+        if (mapType.getMapKeyTypeInfo().getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(0, "The map keys must be primitive, got " + mapType.getTypeName());
+        }
+        if (mapType.getMapValueTypeInfo().getCategory() != ObjectInspector.Category.PRIMITIVE
+                || !isNumeric(((PrimitiveTypeInfo) mapType.getMapValueTypeInfo()).getPrimitiveCategory())) {
+            throw new UDFArgumentTypeException(0, "The map values must be numeric, got " + mapType.getTypeName());
+        }
         return new MapGroupSumEvaluator();
     }
 
+    static boolean isNumeric(PrimitiveObjectInspector.PrimitiveCategory category) {
+        switch (category) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static boolean isFloating(PrimitiveObjectInspector.PrimitiveCategory category) {
+        return category == PrimitiveObjectInspector.PrimitiveCategory.FLOAT
+                || category == PrimitiveObjectInspector.PrimitiveCategory.DOUBLE;
+    }
+
+    /**
+     * Category of the sums of the values of a numeric category
+     */
+    static PrimitiveObjectInspector.PrimitiveCategory sumCategory(PrimitiveObjectInspector.PrimitiveCategory category) {
+        switch (category) {
+            case BYTE:
+            case SHORT:
+                return PrimitiveObjectInspector.PrimitiveCategory.LONG;
+            case FLOAT:
+                return PrimitiveObjectInspector.PrimitiveCategory.DOUBLE;
+            default:
+                return category;
+        }
+    }
+
+    /**
+     * Writable of a sum category holding a sum
+     */
+    static Object writable(PrimitiveObjectInspector.PrimitiveCategory category, long l, double d) {
+        switch (category) {
+            case INT:
+                return new IntWritable((int) l);
+            case LONG:
+                return new LongWritable(l);
+            default:
+                return new DoubleWritable(d);
+        }
+    }
+
+    /**
+     * map<K, V> - PARTIAL1 --> map<K, S>
+     * map<K, S> - PARTIAL2 --> map<K, S>
+     * map<K, S> - FINAL --> map<K, S>
+     * map<K, V> - COMPLETE --> map<K, S>
+     *
+     * S being the type of the sums of V (see sumCategory).
+     */
     public static class MapGroupSumEvaluator extends GenericUDAFEvaluator {
         private MapObjectInspector originalDataOI;
-        private IntObjectInspector valueOI;
-        private StringObjectInspector keyOI;
-
+        private PrimitiveObjectInspector keyOI;
+        private PrimitiveObjectInspector valueOI;
+        private AbstractPrimitiveWritableObjectInspector keyOutputOI;
+        private PrimitiveObjectInspector.PrimitiveCategory valueCategory;
+        private boolean floating;
 
         @Override
         public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
             super.init(m, parameters);
 
+            // Partial results are maps of sums, of the same type as the original data for the types which are
+            // their own sum type
             originalDataOI = (MapObjectInspector) parameters[0];
-            keyOI = (StringObjectInspector) originalDataOI.getMapKeyObjectInspector();
-            valueOI = (IntObjectInspector) originalDataOI.getMapValueObjectInspector();
-            return ObjectInspectorFactory.getStandardMapObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector,
-                        PrimitiveObjectInspectorFactory.javaIntObjectInspector);
-
-
-
-//            /* Setup input OI */
-//            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
-//                /* Input is original data */
-//                originalDataOI = parameters[0];
-//            } else if (m == Mode.PARTIAL2 || m == Mode.FINAL){
-//                /* Input is list of original data */
-//                listOI = (StandardListObjectInspector) parameters[0];
-//                originalDataOI = listOI.getListElementObjectInspector();
-//            }
-//
-//            /* Output OI : always a list of original data */
-//            return ObjectInspectorFactory
-//                    .getStandardListObjectInspector(ObjectInspectorUtils.getStandardObjectInspector(originalDataOI));
+            keyOI = (PrimitiveObjectInspector) originalDataOI.getMapKeyObjectInspector();
+            valueOI = (PrimitiveObjectInspector) originalDataOI.getMapValueObjectInspector();
+            keyOutputOI = (AbstractPrimitiveWritableObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(keyOI, ObjectInspectorUtils.ObjectInspectorCopyOption.WRITABLE);
+            valueCategory = sumCategory(valueOI.getPrimitiveCategory());
+            floating = isFloating(valueCategory);
+            ObjectInspector valueOutputOI = PrimitiveObjectInspectorFactory.getPrimitiveWritableObjectInspector(valueCategory);
+            return ObjectInspectorFactory.getStandardMapObjectInspector(keyOutputOI, valueOutputOI);
         }
 
         static class MapBuffer implements AggregationBuffer {
-            Map<String, Integer> map = new HashMap<String, Integer>();
+            final SumHashTable sums;
+
+            MapBuffer(SumHashTable sums) {
+                this.sums = sums;
+            }
         }
 
         @Override
         public void reset(AggregationBuffer ab) throws HiveException {
-            ((MapBuffer) ab).map.clear();
+            ((MapBuffer) ab).sums.clear();
         }
 
         @Override
         public AggregationBuffer getNewAggregationBuffer() throws HiveException {
-            return new MapBuffer();
+            return new MapBuffer(new SumHashTable(keyOutputOI, floating));
         }
 
-        protected void mapAppend(Map<String, Integer> m, Map<Object, Object> from)  {
+        protected void mapAppend(SumHashTable sums, Map<?, ?> from)  {
             if (from == null) {
                 return;
             }
-            for(Map.Entry<Object, Object> entry : from.entrySet()) {
+            for (Map.Entry<?, ?> entry : from.entrySet()) {
                 Object okey = entry.getKey();
                 Object ovalue = entry.getValue();
                 if (okey == null || ovalue == null) continue;
-                String key = keyOI.getPrimitiveJavaObject(entry.getKey());
-                Integer value = valueOI.get(entry.getValue());
-                if (m.containsKey(key)) {
-                    m.put(key, m.get(key) + value);
+                Object key = keyOI.getPrimitiveWritableObject(okey);
+                if (key == null) continue;
+                if (floating) {
+                    sums.addDouble(key, PrimitiveObjectInspectorUtils.getDouble(ovalue, valueOI));
                 } else {
-                    m.put(key, value);
+                    sums.addLong(key, PrimitiveObjectInspectorUtils.getLong(ovalue, valueOI));
                 }
             }
         }
@@ -103,29 +167,39 @@ public class UDAFMapGroupSum extends AbstractGenericUDAFResolver {
             Object p = parameters[0];
             if (p != null) {
                 MapBuffer agg = (MapBuffer) ab;
-                Map<Object, Object> o = (Map<Object, Object>) this.originalDataOI.getMap(p);
-                mapAppend(agg.map, o);
+                mapAppend(agg.sums, originalDataOI.getMap(p));
             }
         }
 
         @Override
         public Object terminatePartial(AggregationBuffer ab) throws HiveException {
-            MapBuffer agg = (MapBuffer) ab;
-            return Maps.newHashMap(agg.map);
+            return terminate(ab);
         }
 
         @Override
         public void merge(AggregationBuffer ab, Object p) throws HiveException {
-            MapBuffer agg = (MapBuffer) ab;
-            @SuppressWarnings("unchecked")
-            Map<Object, Object> obj = (Map<Object, Object>) this.originalDataOI.getMap(p);
-            mapAppend(agg.map, obj);
+            if (p != null) {
+                MapBuffer agg = (MapBuffer) ab;
+                mapAppend(agg.sums, originalDataOI.getMap(p));
+            }
         }
 
         @Override
         public Object terminate(AggregationBuffer ab)  throws HiveException {
-            MapBuffer agg = (MapBuffer) ab;
-            return Maps.newHashMap(agg.map);
+            SumHashTable sums = ((MapBuffer) ab).sums;
+            Map<Object, Object> result = new HashMap<Object, Object>(2 * sums.size());
+            for (int i = 0; i < sums.capacity(); i++) {
+                Object key = sums.keyAt(i);
+                if (key == null) {
+                    continue;
+                }
+                if (floating) {
+                    result.put(key, writable(valueCategory, 0, sums.doubleAt(i)));
+                } else {
+                    result.put(key, writable(valueCategory, sums.longAt(i), 0));
+                }
+            }
+            return result;
         }
     }
 }
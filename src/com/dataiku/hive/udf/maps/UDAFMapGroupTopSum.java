@@ -0,0 +1,243 @@
+/**
+ * Copyright 2013 Dataiku
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataiku.hive.udf.maps;
+
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.AbstractPrimitiveWritableObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.MapTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded memory map_group_sum, keeping the approximate sums of the keys with the largest sums
+ * in a Space-Saving summary of a given capacity.
+ */
+public class UDAFMapGroupTopSum extends AbstractGenericUDAFResolver {
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] tis) throws SemanticException {
+        if (tis.length != 2) {
+            throw new UDFArgumentTypeException(tis.length - 1, "Exactly two arguments are expected.");
+        }
+        if (tis[0].getCategory() != ObjectInspector.Category.MAP) {
+            throw new UDFArgumentTypeException(0, "A map is expected, got " + tis[0].getTypeName());
+        }
+        MapTypeInfo mapType = (MapTypeInfo) tis[0];
+        if (mapType.getMapKeyTypeInfo().getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(0, "The map keys must be primitive, got " + mapType.getTypeName());
+        }
+        if (mapType.getMapValueTypeInfo().getCategory() != ObjectInspector.Category.PRIMITIVE
+                || !UDAFMapGroupSum.isNumeric(((PrimitiveTypeInfo) mapType.getMapValueTypeInfo()).getPrimitiveCategory())
+                || UDAFMapGroupSum.isFloating(((PrimitiveTypeInfo) mapType.getMapValueTypeInfo()).getPrimitiveCategory())) {
+            throw new UDFArgumentTypeException(0, "The map values must be integers, got " + mapType.getTypeName());
+        }
+        if (tis[1].getCategory() != ObjectInspector.Category.PRIMITIVE
+                || ((PrimitiveTypeInfo) tis[1]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.INT) {
+            throw new UDFArgumentTypeException(1, "The capacity must be an int constant.");
+        }
+        return new MapGroupTopSumEvaluator();
+    }
+
+    /**
+     * map_group_top_sum(map<K, V> m, int capacity)
+     * (m, capacity) - PARTIAL1 --> struct<capacity: int, floor: bigint, keys: array<K>, sums: array<bigint>, errors: array<bigint>>
+     * struct - PARTIAL2 --> struct
+     * struct - FINAL --> map<K, bigint>
+     * (m, capacity) - COMPLETE --> map<K, bigint>
+     */
+    public static class MapGroupTopSumEvaluator extends GenericUDAFEvaluator {
+        private MapObjectInspector originalDataOI;
+        private PrimitiveObjectInspector keyOI;
+        private PrimitiveObjectInspector valueOI;
+        private AbstractPrimitiveWritableObjectInspector keyOutputOI;
+        private int capacity;
+
+        private StructObjectInspector partialOI;
+        private StructField capacityField;
+        private StructField floorField;
+        private StructField keysField;
+        private StructField sumsField;
+        private StructField errorsField;
+        private PrimitiveObjectInspector partialCapacityOI;
+        private PrimitiveObjectInspector partialFloorOI;
+        private ListObjectInspector partialKeysOI;
+        private ListObjectInspector partialSumsOI;
+        private ListObjectInspector partialErrorsOI;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            super.init(m, parameters);
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                originalDataOI = (MapObjectInspector) parameters[0];
+                keyOI = (PrimitiveObjectInspector) originalDataOI.getMapKeyObjectInspector();
+                valueOI = (PrimitiveObjectInspector) originalDataOI.getMapValueObjectInspector();
+                keyOutputOI = (AbstractPrimitiveWritableObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(keyOI, ObjectInspectorUtils.ObjectInspectorCopyOption.WRITABLE);
+                if (!(parameters[1] instanceof ConstantObjectInspector)) {
+                    throw new UDFArgumentTypeException(1, "The capacity must be an int constant.");
+                }
+                Object constant = ((ConstantObjectInspector) parameters[1]).getWritableConstantValue();
+                capacity = PrimitiveObjectInspectorUtils.getInt(constant, (PrimitiveObjectInspector) parameters[1]);
+                if (capacity <= 0) {
+                    throw new UDFArgumentTypeException(1, "The capacity must be positive.");
+                }
+            } else {
+                partialOI = (StructObjectInspector) parameters[0];
+                capacityField = partialOI.getStructFieldRef("capacity");
+                floorField = partialOI.getStructFieldRef("floor");
+                keysField = partialOI.getStructFieldRef("keys");
+                sumsField = partialOI.getStructFieldRef("sums");
+                errorsField = partialOI.getStructFieldRef("errors");
+                partialCapacityOI = (PrimitiveObjectInspector) capacityField.getFieldObjectInspector();
+                partialFloorOI = (PrimitiveObjectInspector) floorField.getFieldObjectInspector();
+                partialKeysOI = (ListObjectInspector) keysField.getFieldObjectInspector();
+                partialSumsOI = (ListObjectInspector) sumsField.getFieldObjectInspector();
+                partialErrorsOI = (ListObjectInspector) errorsField.getFieldObjectInspector();
+                keyOI = (PrimitiveObjectInspector) partialKeysOI.getListElementObjectInspector();
+                keyOutputOI = (AbstractPrimitiveWritableObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(keyOI, ObjectInspectorUtils.ObjectInspectorCopyOption.WRITABLE);
+            }
+
+            if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+                ObjectInspector longsOI = ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+                List<String> names = Arrays.asList("capacity", "floor", "keys", "sums", "errors");
+                List<ObjectInspector> inspectors = new ArrayList<ObjectInspector>();
+                inspectors.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+                inspectors.add(PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+                inspectors.add(ObjectInspectorFactory.getStandardListObjectInspector(keyOutputOI));
+                inspectors.add(longsOI);
+                inspectors.add(longsOI);
+                return ObjectInspectorFactory.getStandardStructObjectInspector(names, inspectors);
+            }
+            return ObjectInspectorFactory.getStandardMapObjectInspector(keyOutputOI,
+                    PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+        }
+
+        static class SummaryBuffer implements AggregationBuffer {
+            // Created on the first merge when the capacity is only known from the partials
+            SpaceSaving summary;
+        }
+
+        @Override
+        public void reset(AggregationBuffer ab) throws HiveException {
+            SummaryBuffer agg = (SummaryBuffer) ab;
+            if (agg.summary != null) {
+                agg.summary.clear();
+            }
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            SummaryBuffer agg = new SummaryBuffer();
+            if (capacity > 0) {
+                agg.summary = new SpaceSaving(keyOutputOI, capacity);
+            }
+            return agg;
+        }
+
+        @Override
+        public void iterate(AggregationBuffer ab, Object[] parameters) throws HiveException {
+            assert (parameters.length == 2);
+            Object p = parameters[0];
+            if (p == null) {
+                return;
+            }
+            SpaceSaving summary = ((SummaryBuffer) ab).summary;
+            for (Map.Entry<?, ?> entry : originalDataOI.getMap(p).entrySet()) {
+                Object okey = entry.getKey();
+                Object ovalue = entry.getValue();
+                if (okey == null || ovalue == null) continue;
+                Object key = keyOI.getPrimitiveWritableObject(okey);
+                if (key == null) continue;
+                summary.add(key, PrimitiveObjectInspectorUtils.getLong(ovalue, valueOI));
+            }
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer ab) throws HiveException {
+            SpaceSaving summary = ((SummaryBuffer) ab).summary;
+            List<Object> keys = new ArrayList<Object>();
+            List<Object> sums = new ArrayList<Object>();
+            List<Object> errors = new ArrayList<Object>();
+            if (summary == null) {
+                return new Object[] { new IntWritable(0), new LongWritable(0), keys, sums, errors };
+            }
+            for (int i = 0; i < summary.size(); i++) {
+                keys.add(summary.keyAt(i));
+                sums.add(new LongWritable(summary.sumAt(i)));
+                errors.add(new LongWritable(summary.errorAt(i)));
+            }
+            return new Object[] { new IntWritable(summary.getCapacity()), new LongWritable(summary.floor()), keys, sums, errors };
+        }
+
+        @Override
+        public void merge(AggregationBuffer ab, Object p) throws HiveException {
+            if (p == null) {
+                return;
+            }
+            int partialCapacity = PrimitiveObjectInspectorUtils.getInt(partialOI.getStructFieldData(p, capacityField), partialCapacityOI);
+            if (partialCapacity <= 0) {
+                // Empty partial
+                return;
+            }
+            SummaryBuffer agg = (SummaryBuffer) ab;
+            if (agg.summary == null) {
+                agg.summary = new SpaceSaving(keyOutputOI, partialCapacity);
+            }
+            long floor = PrimitiveObjectInspectorUtils.getLong(partialOI.getStructFieldData(p, floorField), partialFloorOI);
+            Object keyList = partialOI.getStructFieldData(p, keysField);
+            Object sumList = partialOI.getStructFieldData(p, sumsField);
+            Object errorList = partialOI.getStructFieldData(p, errorsField);
+            PrimitiveObjectInspector sumOI = (PrimitiveObjectInspector) partialSumsOI.getListElementObjectInspector();
+            PrimitiveObjectInspector errorOI = (PrimitiveObjectInspector) partialErrorsOI.getListElementObjectInspector();
+
+            int n = partialKeysOI.getListLength(keyList);
+            Object[] keys = new Object[n];
+            long[] sums = new long[n];
+            long[] errors = new long[n];
+            for (int i = 0; i < n; i++) {
+                keys[i] = keyOI.getPrimitiveWritableObject(partialKeysOI.getListElement(keyList, i));
+                sums[i] = PrimitiveObjectInspectorUtils.getLong(partialSumsOI.getListElement(sumList, i), sumOI);
+                errors[i] = PrimitiveObjectInspectorUtils.getLong(partialErrorsOI.getListElement(errorList, i), errorOI);
+            }
+            agg.summary.merge(keys, sums, errors, n, floor);
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer ab) throws HiveException {
+            SpaceSaving summary = ((SummaryBuffer) ab).summary;
+            Map<Object, Object> result = new HashMap<Object, Object>();
+            if (summary != null) {
+                for (int i = 0; i < summary.size(); i++) {
+                    result.put(summary.keyAt(i), new LongWritable(summary.sumAt(i)));
+                }
+            }
+            return result;
+        }
+    }
+}
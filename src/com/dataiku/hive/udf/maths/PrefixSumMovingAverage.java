@@ -7,40 +7,35 @@ package com.dataiku.hive.udf.maths;
  *
  * This class is call by UDFExponentialSmoothingMovingAverage to do the moving average.
  *
+ * Only the windowSize periods ending at position contribute to the average, so the state is one slot per
+ * period of the window, indexed by position - period. Rows outside of the window are dropped when they are
+ * added, and partials are merged slot by slot. When several rows have the same period, the last one wins.
+ *
  */
 
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Collections;
+
+import com.dataiku.hive.udf.BinaryPartials;
 import org.apache.hadoop.hive.serde2.io.DoubleWritable;
-import org.yecht.Data;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
 
 public class PrefixSumMovingAverage {
-    static class PrefixSumEntry implements Comparable
-    {
-        int period;
-        double value;
-        double prefixSum;
-        double subsequenceTotal;
-        double movingAverage;
-        public int compareTo(Object other)
-        {
-            PrefixSumEntry o = (PrefixSumEntry)other;
-            if (period < o.period)
-                return -1;
-            if (period > o.period)
-                return 1;
-            return 0;
-        }
-    }
 
     //class variables
     private int windowSize;
     private double diviseur;
     private int position;
 
-    private ArrayList<PrefixSumEntry> entries;
+    // values[j] is the value of period position - j
+    private double[] values;
+    private boolean[] present;
+    private double[] coefficients;
+    private double coefficientsSum;
 
     public PrefixSumMovingAverage()
     {
@@ -54,7 +49,9 @@ public class PrefixSumMovingAverage {
         windowSize = 0;
         diviseur = 0.0;
         position = 0;
-        entries = null;
+        values = null;
+        present = null;
+        coefficients = null;
     }
 
     public boolean isReady()
@@ -72,8 +69,28 @@ public class PrefixSumMovingAverage {
 
         windowSize = window_size;
         diviseur = d;
-        entries = new ArrayList<PrefixSumEntry>();
         position = p;
+        values = new double[windowSize];
+        present = new boolean[windowSize];
+
+        // Compute the list of ponderation coeff for the moving average.
+        coefficients = coefficients(windowSize, diviseur);
+        coefficientsSum = 0.0;
+        for (double c : coefficients) {
+            coefficientsSum += c;
+        }
+    }
+
+    /**
+     * The ponderation coefficients of a window: 1/d^1 for the last period, 1/d^2 for the previous one, and so on.
+     */
+    public static double[] coefficients(int windowSize, double d)
+    {
+        double[] listCoeff = new double[windowSize];
+        for (int i=1; i<=windowSize; i++){
+            listCoeff[i-1] = 1/Math.pow(d,i);
+        }
+        return listCoeff;
     }
 
     public double getDiviseur() {
@@ -84,151 +101,100 @@ public class PrefixSumMovingAverage {
         return position;
     }
 
-
-    @SuppressWarnings("unchecked")
-    public void merge(List<DoubleWritable> other)
+    /**
+     * Adds the value of a period, ignored if the period is not in the window
+     */
+    public void add(int period, double v)
     {
-
-        if (other == null)
-            return;
-
-        // if this is an empty buffer, just copy in other
-        // but deserialize the list
-        if (windowSize == 0)
+        long j = (long) position - period;
+        if (j >= 0 && j < windowSize)
         {
-
-            windowSize = (int)other.get(0).get();
-            diviseur = (double)other.get(1).get();
-            position = (int)other.get(2).get();
-
-
-
-
-            entries = new ArrayList<PrefixSumEntry>();
-            // we're serialized as period, value, period, value
-            for (int i = 3; i < other.size(); i+=2)
-            {
-                PrefixSumEntry e = new PrefixSumEntry();
-                e.period = (int)other.get(i).get();
-                e.value = other.get(i+1).get();
-                entries.add(e);
-            }
+            values[(int) j] = v;
+            present[(int) j] = true;
         }
+    }
 
-        // if we already have a buffer, we need to add these entries
-        else
+    /**
+     * The moving average at position, missing periods counting as 0
+     */
+    public double getMovingAverage()
+    {
+        double prefixSum = 0;
+        for (int j = 0; j < windowSize; j++)
         {
-            // we're serialized as period, value, period, value
-            for (int i = 3; i < other.size(); i+=2)
+            if (present[j])
             {
-                PrefixSumEntry e = new PrefixSumEntry();
-                e.period = (int)other.get(i).get();
-                e.value = other.get(i+1).get();
-                entries.add(e);
+                prefixSum += values[j] * coefficients[j];
             }
         }
+        return prefixSum/coefficientsSum; //Moving average is computed here!
+    }
 
-        // sort and recompute
-        Collections.sort(entries);
-
-        // Compute the list of ponderation coeff for the moving average.
-
-
-        // Compute the list of ponderation coeff for the moving average.
-
-        double[] listCoeff = new double[windowSize];
-        double subdenom = 0.0;
-        double coeffPond = 0.0;
+    /**
+     * Merges a partial serialized by serialize
+     */
+    public void merge(List<DoubleWritable> other)
+    {
+        if (other == null || other.size() < 3 || other.get(0).get() < 1)
+            return;
 
-        for (int i=1; i<=windowSize; i++){
-            coeffPond = 1/Math.pow(this.getDiviseur(),i);
-            listCoeff[i-1]=coeffPond;
-            subdenom += coeffPond;
+        if (windowSize == 0)
+        {
+            allocate((int)other.get(0).get(), other.get(1).get(), (int)other.get(2).get());
         }
 
-        // now do the subsequence totals and moving averages
-
-        int lastEntry = entries.size()-1;
-
-        double prefixSum = 0;
-
-        int variationPos = 0;
-        //System.out.println("beginning for");
-        for(int j = 0; j < windowSize; j++)
+        // we're serialized as period, value, period, value
+        for (int i = 3; i + 1 < other.size(); i+=2)
         {
-            // my last entries:
-            if(lastEntry-variationPos>=0){
-                PrefixSumEntry thisEntry = entries.get(lastEntry-variationPos);
-
-                while (thisEntry.period>(getPosition()-j)){
-                    variationPos+=1;
-                    thisEntry = entries.get(lastEntry-variationPos);
-                    //System.out.println(String.valueOf(thisEntry.period));
-                };
-
-                //System.out.println(String.valueOf(thisEntry.period) + " " + String.valueOf(thisEntry.value) +" "+ String.valueOf(variationPos));
-                //System.out.println("            test:");
-                //System.out.println("               "+ String.valueOf(thisEntry.period) + " == " + String.valueOf(getPosition()) +" - "+ String.valueOf(j));
-                if (thisEntry.period==(getPosition()-j)){
-                    prefixSum += thisEntry.value * listCoeff[j];
-                    variationPos+=1;
-                }
-                else {
-                    prefixSum += 0 * listCoeff[j];
-
-                }
-            }
-            else {
-                    prefixSum += 0 * listCoeff[j];
-                }
-
+            add((int)other.get(i).get(), other.get(i+1).get());
         }
-
-        double movingAverage;
-        PrefixSumEntry thisEntry = entries.get(lastEntry);
-        movingAverage = prefixSum/subdenom; //Moving average is computed here!
-        //System.out.println("result:"+String.valueOf(movingAverage));
-        thisEntry.movingAverage = movingAverage;
-
-
-
     }
 
-    public int tableSize()
+    /**
+     * Merges a partial serialized by serializeBinary
+     */
+    public void mergeBinary(byte[] data, int length) throws IOException
     {
-        return entries.size();
-    }
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(data, length);
+        int otherWindowSize = WritableUtils.readVInt(in);
+        double otherDiviseur = in.readDouble();
+        int otherPosition = WritableUtils.readVInt(in);
+        if (otherWindowSize < 1)
+            return;
 
-    public PrefixSumEntry getEntry(int index)
-    {
-        return entries.get(index);
-    }
+        if (windowSize == 0)
+        {
+            allocate(otherWindowSize, otherDiviseur, otherPosition);
+        }
 
-    private boolean needsSorting(ArrayList<PrefixSumEntry> entries)
-    {
-        PrefixSumEntry previous = null;
-        for (PrefixSumEntry current:entries)
+        int n = WritableUtils.readVInt(in);
+        long[] periods = new long[n];
+        BinaryPartials.readDeltas(in, periods, n);
+        for (int i = 0; i < n; i++)
         {
-            if (previous != null && current.compareTo(previous) < 0)
-                return true;
+            add((int)periods[i], in.readDouble());
         }
-        return false;
     }
 
-    @SuppressWarnings("unchecked")
-    public void add(int period, double v)
+    /**
+     * The periods of the window which have a value, in increasing order
+     */
+    private int[] presentPeriods()
     {
-        //Add a new entry to the list and update table
-        PrefixSumEntry e = new PrefixSumEntry();
-        e.period = period;
-        e.value = v;
-        entries.add(e);
-        // do we need to ensure this is sorted?
-        //if (needsSorting(entries))
-        Collections.sort(entries);
-        // update the table
-        // prefixSums first
-
+        int n = 0;
+        for (int j = 0; j < windowSize; j++)
+        {
+            if (present[j])
+                n++;
+        }
+        int[] periods = new int[n];
+        for (int j = windowSize - 1; j >= 0; j--)
+        {
+            if (present[j])
+                periods[--n] = position - j;
+        }
+        return periods;
     }
 
     public ArrayList<DoubleWritable> serialize()
@@ -239,14 +205,37 @@ public class PrefixSumMovingAverage {
         result.add(new DoubleWritable(diviseur));
         result.add(new DoubleWritable(position));
 
-        if (entries != null)
+        if (isReady())
         {
-            for (PrefixSumEntry i : entries)
+            for (int period : presentPeriods())
             {
-                result.add(new DoubleWritable(i.period));
-                result.add(new DoubleWritable(i.value));
+                result.add(new DoubleWritable(period));
+                result.add(new DoubleWritable(values[position - period]));
             }
         }
         return result;
     }
-}
\ No newline at end of file
+
+    /**
+     * Compact form of serialize: the periods are written as variable length deltas
+     */
+    public void serializeBinary(DataOutputBuffer out) throws IOException
+    {
+        WritableUtils.writeVInt(out, windowSize);
+        out.writeDouble(diviseur);
+        WritableUtils.writeVInt(out, position);
+        int[] periods = isReady() ? presentPeriods() : new int[0];
+        int n = periods.length;
+        WritableUtils.writeVInt(out, n);
+        long[] deltas = new long[n];
+        for (int i = 0; i < n; i++)
+        {
+            deltas[i] = periods[i];
+        }
+        BinaryPartials.writeDeltas(out, deltas, n);
+        for (int i = 0; i < n; i++)
+        {
+            out.writeDouble(values[position - periods[i]]);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.dataiku.hive.udf.maths;
+
+/**
+ * Moving average of the last windowSize values of a stream, updated in O(1) per value: the new value is
+ * added to running sums, and the value leaving the window is subtracted.
+ *
+ * Kernels, the last value having index 0:
+ *  - simple: the mean of the values of the window
+ *  - weighted: value i has the weight windowSize - i
+ *  - exponential: value i has the weight 1/pow(div, i + 1), as in moving_avg
+ *
+ * While the window is not full, the weights are normalized over the values seen so far.
+ */
+public class SlidingMovingAverage {
+    public enum Kernel {
+        SIMPLE, WEIGHTED, EXPONENTIAL
+    }
+
+    private final Kernel kernel;
+    private final int windowSize;
+    private final double diviseur;
+    private final double[] coefficients;
+    // coefficientSums[k - 1] is the sum of the coefficients of a window of k values
+    private final double[] coefficientSums;
+
+    // The values of the window, the last one being at next - 1
+    private final double[] ring;
+    private int next;
+    private int count;
+
+    private double sum;
+    private double weightedSum;
+
+    public SlidingMovingAverage(Kernel kernel, int windowSize, double diviseur) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("The window size must be >= 1, got " + windowSize);
+        }
+        this.kernel = kernel;
+        this.windowSize = windowSize;
+        this.diviseur = diviseur;
+        this.ring = new double[windowSize];
+        if (kernel == Kernel.EXPONENTIAL) {
+            coefficients = PrefixSumMovingAverage.coefficients(windowSize, diviseur);
+            coefficientSums = new double[windowSize];
+            double s = 0;
+            for (int i = 0; i < windowSize; i++) {
+                s += coefficients[i];
+                coefficientSums[i] = s;
+            }
+        } else {
+            coefficients = null;
+            coefficientSums = null;
+        }
+    }
+
+    public Kernel getKernel() {
+        return kernel;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public double getDiviseur() {
+        return diviseur;
+    }
+
+    public void reset() {
+        next = 0;
+        count = 0;
+        sum = 0;
+        weightedSum = 0;
+    }
+
+    /**
+     * Adds the next value of the stream
+     * @return the moving average of the window ending with this value
+     */
+    public double add(double v) {
+        boolean full = count == windowSize;
+        double leaving = full ? ring[next] : 0;
+        ring[next] = v;
+        next = (next + 1) % windowSize;
+        if (!full) {
+            count++;
+        }
+
+        if (next == 0) {
+            // Recompute the running sums once per window, so that rounding errors do not accumulate
+            // over long streams (the exponential recurrence does not damp them when div is 1).
+            // This keeps the cost amortized O(1) per value. The window is full, from ring[0] to ring[windowSize - 1].
+            sum = 0;
+            weightedSum = 0;
+            for (int i = 0; i < windowSize; i++) {
+                sum += ring[i];
+                weightedSum += kernel == Kernel.EXPONENTIAL ? coefficients[windowSize - 1 - i] * ring[i] : (i + 1) * ring[i];
+            }
+            switch (kernel) {
+                case SIMPLE:
+                    return sum / windowSize;
+                case WEIGHTED:
+                    return weightedSum / ((double) windowSize * (windowSize + 1) / 2);
+                default:
+                    return weightedSum / coefficientSums[windowSize - 1];
+            }
+        }
+
+        switch (kernel) {
+            case SIMPLE:
+                sum += v - leaving;
+                return sum / count;
+            case WEIGHTED:
+                // The previous values all lose one from their weight, the value leaving the window going down to 0
+                weightedSum += windowSize * v - sum;
+                sum += v - leaving;
+                return weightedSum / ((double) count * windowSize - (double) count * (count - 1) / 2);
+            default:
+                if (diviseur >= 1) {
+                    // Every previous value gets one more power of the divisor
+                    weightedSum = (v + weightedSum - leaving * coefficients[windowSize - 1]) / diviseur;
+                } else {
+                    // The recurrence would multiply rounding errors by 1/div at each value
+                    weightedSum = 0;
+                    for (int i = 0; i < count; i++) {
+                        weightedSum += coefficients[i] * ring[(next - 1 - i + windowSize) % windowSize];
+                    }
+                }
+                return weightedSum / coefficientSums[count - 1];
+        }
+    }
+}
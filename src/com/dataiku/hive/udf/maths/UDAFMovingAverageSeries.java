@@ -0,0 +1,321 @@
+package com.dataiku.hive.udf.maths;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.dataiku.hive.udf.BinaryPartials;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Whole series version of moving_avg: the moving average of every period between the first and the last period
+ * of the group, computed in one aggregation. The series is sorted once, and the averages are computed in a
+ * single sliding pass.
+ */
+@Description(name = "moving_avg_series", value = "_FUNC_(p, x, window, div) - Returns the map of each period to the moving mean of x over a window of n observations 1/pow(div,i)")
+public class UDAFMovingAverageSeries extends AbstractGenericUDAFResolver {
+    // Largest number of periods between the first and the last period of a group. Each of them gets an entry of the
+    // result map, of about 100 bytes.
+    static final long MAX_SPAN = 1000000;
+
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters) throws SemanticException {
+        if (parameters.length != 4) {
+            throw new UDFArgumentTypeException(parameters.length - 1, "Moving average series requires 4 parameters");
+        }
+        for (int i = 0; i < 2; i++) {
+            if (parameters[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+                throw new UDFArgumentTypeException(i, "Only primitive, numeric types can have a moving average but "
+                        + parameters[i].getTypeName() + " was passed.");
+            }
+            switch (((PrimitiveTypeInfo) parameters[i]).getPrimitiveCategory()) {
+                case FLOAT:
+                case DOUBLE:
+                case INT:
+                case LONG:
+                case SHORT:
+                    break;
+                default:
+                    throw new UDFArgumentTypeException(i, "Only numeric type arguments (excluding bytes and timestamps) are accepted "
+                            + "but " + parameters[i].getTypeName() + " was passed.");
+            }
+        }
+        if (parameters[2].getCategory() != ObjectInspector.Category.PRIMITIVE
+                || ((PrimitiveTypeInfo) parameters[2]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.INT) {
+            throw new UDFArgumentTypeException(2, "ensure that the window size is an integer");
+        }
+        if (parameters[3].getCategory() != ObjectInspector.Category.PRIMITIVE
+                || ((PrimitiveTypeInfo) parameters[3]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.DOUBLE) {
+            throw new UDFArgumentTypeException(3, "ensure that the diviseur is a double");
+        }
+        return new MovingAverageSeriesEvaluator();
+    }
+
+    /**
+     * (p, x, window, div) - PARTIAL1 --> binary series
+     * binary series - PARTIAL2 --> binary series
+     * binary series - FINAL --> map<int, double>
+     * (p, x, window, div) - COMPLETE --> map<int, double>
+     *
+     * The binary series is the window size, the divisor, the number of points, the sorted periods
+     * as variable length deltas, then the values.
+     */
+    public static class MovingAverageSeriesEvaluator extends GenericUDAFEvaluator {
+        private PrimitiveObjectInspector periodOI;
+        private PrimitiveObjectInspector inputOI;
+        private PrimitiveObjectInspector windowSizeOI;
+        private PrimitiveObjectInspector diviseurOI;
+        private BinaryObjectInspector partialOI;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            super.init(m, parameters);
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                periodOI = (PrimitiveObjectInspector) parameters[0];
+                inputOI = (PrimitiveObjectInspector) parameters[1];
+                windowSizeOI = (PrimitiveObjectInspector) parameters[2];
+                diviseurOI = (PrimitiveObjectInspector) parameters[3];
+            } else {
+                partialOI = (BinaryObjectInspector) parameters[0];
+            }
+            if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+                return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+            }
+            return ObjectInspectorFactory.getStandardMapObjectInspector(PrimitiveObjectInspectorFactory.writableIntObjectInspector,
+                    PrimitiveObjectInspectorFactory.writableDoubleObjectInspector);
+        }
+
+        static class SeriesAgg implements AggregationBuffer {
+            int windowSize;
+            double diviseur;
+            int[] periods = new int[16];
+            double[] values = new double[16];
+            int size;
+
+            void add(int period, double value) {
+                if (size == periods.length) {
+                    periods = Arrays.copyOf(periods, 2 * size);
+                    values = Arrays.copyOf(values, 2 * size);
+                }
+                periods[size] = period;
+                values[size] = value;
+                size++;
+            }
+
+            /**
+             * Sorts the points by period, keeping the last added value of each period
+             */
+            void sort() {
+                long[] keys = new long[size];
+                for (int i = 0; i < size; i++) {
+                    // Period in the high bits, insertion order in the low bits
+                    keys[i] = ((long) periods[i] << 32) | i;
+                }
+                Arrays.sort(keys);
+                int[] sortedPeriods = new int[Math.max(16, size)];
+                double[] sortedValues = new double[sortedPeriods.length];
+                int n = 0;
+                for (int i = 0; i < size; i++) {
+                    int period = (int) (keys[i] >> 32);
+                    int from = (int) keys[i];
+                    if (n > 0 && sortedPeriods[n - 1] == period) {
+                        n--;
+                    }
+                    sortedPeriods[n] = period;
+                    sortedValues[n] = values[from];
+                    n++;
+                }
+                periods = sortedPeriods;
+                values = sortedValues;
+                size = n;
+            }
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new SeriesAgg();
+        }
+
+        @Override
+        public void reset(AggregationBuffer agg) throws HiveException {
+            SeriesAgg myagg = (SeriesAgg) agg;
+            myagg.windowSize = 0;
+            myagg.diviseur = 0;
+            myagg.size = 0;
+        }
+
+        @Override
+        public void iterate(AggregationBuffer agg, Object[] parameters) throws HiveException {
+            assert (parameters.length == 4);
+            if (parameters[0] == null || parameters[1] == null || parameters[2] == null || parameters[3] == null) {
+                return;
+            }
+            SeriesAgg myagg = (SeriesAgg) agg;
+            if (myagg.windowSize == 0) {
+                int windowSize = PrimitiveObjectInspectorUtils.getInt(parameters[2], windowSizeOI);
+                if (windowSize < 1) {
+                    throw new HiveException(getClass().getSimpleName() + " needs a window size >= 1");
+                }
+                myagg.windowSize = windowSize;
+                myagg.diviseur = PrimitiveObjectInspectorUtils.getDouble(parameters[3], diviseurOI);
+            }
+            myagg.add(PrimitiveObjectInspectorUtils.getInt(parameters[0], periodOI),
+                    PrimitiveObjectInspectorUtils.getDouble(parameters[1], inputOI));
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            SeriesAgg myagg = (SeriesAgg) agg;
+            myagg.sort();
+            DataOutputBuffer out = new DataOutputBuffer();
+            try {
+                WritableUtils.writeVInt(out, myagg.windowSize);
+                out.writeDouble(myagg.diviseur);
+                WritableUtils.writeVInt(out, myagg.size);
+                long[] periods = new long[myagg.size];
+                for (int i = 0; i < myagg.size; i++) {
+                    periods[i] = myagg.periods[i];
+                }
+                BinaryPartials.writeDeltas(out, periods, myagg.size);
+                for (int i = 0; i < myagg.size; i++) {
+                    out.writeDouble(myagg.values[i]);
+                }
+            } catch (IOException e) {
+                throw new HiveException(e);
+            }
+            BytesWritable result = new BytesWritable();
+            result.set(out.getData(), 0, out.getLength());
+            return result;
+        }
+
+        @Override
+        public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+            if (partial == null) {
+                return;
+            }
+            SeriesAgg myagg = (SeriesAgg) agg;
+            BytesWritable bytes = partialOI.getPrimitiveWritableObject(partial);
+            DataInputBuffer in = new DataInputBuffer();
+            in.reset(bytes.getBytes(), bytes.getLength());
+            try {
+                int windowSize = WritableUtils.readVInt(in);
+                double diviseur = in.readDouble();
+                if (windowSize < 1) {
+                    return;
+                }
+                if (myagg.windowSize == 0) {
+                    myagg.windowSize = windowSize;
+                    myagg.diviseur = diviseur;
+                }
+                int n = WritableUtils.readVInt(in);
+                long[] periods = new long[n];
+                BinaryPartials.readDeltas(in, periods, n);
+                for (int i = 0; i < n; i++) {
+                    myagg.add((int) periods[i], in.readDouble());
+                }
+            } catch (IOException e) {
+                throw new HiveException(e);
+            }
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            SeriesAgg myagg = (SeriesAgg) agg;
+            if (myagg.windowSize == 0 || myagg.size == 0) {
+                return null;
+            }
+            myagg.sort();
+            int first = myagg.periods[0];
+            double[] averages = movingAverages(myagg.periods, myagg.values, myagg.size, myagg.windowSize, myagg.diviseur);
+            Map<IntWritable, DoubleWritable> result = new HashMap<IntWritable, DoubleWritable>(averages.length * 4 / 3 + 1);
+            for (int i = 0; i < averages.length; i++) {
+                result.put(new IntWritable(first + i), new DoubleWritable(averages[i]));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The moving averages of all the periods from periods[0] to periods[n - 1], as moving_avg would compute
+     * them at each position, missing periods counting as 0.
+     *
+     * With c(j) = 1/d^(j+1), the weighted sum at t, S(t) = sum(c(j) * v(t - j), j < window), slides as
+     * S(t) = (v(t) + S(t - 1) - v(t - window) / d^window) / d, recomputed over its window once per window.
+     * Rounding errors are multiplied by 1/d at each step, so when d < 1 each sum is rather computed over its window.
+     *
+     * @param periods sorted distinct periods
+     * @throws HiveException if the periods span more than MAX_SPAN periods
+     */
+    static double[] movingAverages(int[] periods, double[] values, int n, int windowSize, double diviseur) throws HiveException {
+        double[] coefficients = PrefixSumMovingAverage.coefficients(windowSize, diviseur);
+        double coefficientsSum = 0;
+        for (double c : coefficients) {
+            coefficientsSum += c;
+        }
+
+        int first = periods[0];
+        long span = (long) periods[n - 1] - first + 1;
+        if (span > MAX_SPAN) {
+            throw new HiveException("moving_avg_series cannot compute the " + span + " moving averages between the periods "
+                    + first + " and " + periods[n - 1] + ", the periods of a group must span at most " + MAX_SPAN + " periods");
+        }
+        double[] series = new double[(int) span];
+        for (int i = 0; i < n; i++) {
+            series[periods[i] - first] = values[i];
+        }
+
+        double[] averages = new double[series.length];
+        if (diviseur >= 1) {
+            // 1/d^window, the coefficient of the period leaving the window
+            double oldest = coefficients[windowSize - 1];
+            double sum = 0;
+            for (int i = 0; i < series.length; i++) {
+                if (i % windowSize == 0) {
+                    // Recompute the sum once per window, so that rounding errors do not accumulate when d is 1,
+                    // the recurrence then being a plain running sum
+                    sum = windowSum(series, coefficients, i);
+                } else {
+                    double out = i >= windowSize ? series[i - windowSize] : 0;
+                    sum = (series[i] + sum - out * oldest) / diviseur;
+                }
+                averages[i] = sum / coefficientsSum;
+            }
+        } else {
+            for (int i = 0; i < series.length; i++) {
+                averages[i] = windowSum(series, coefficients, i) / coefficientsSum;
+            }
+        }
+        return averages;
+    }
+
+    /**
+     * S(t), the weighted sum of the window ending at t
+     */
+    private static double windowSum(double[] series, double[] coefficients, int t) {
+        double sum = 0;
+        for (int j = 0; j < coefficients.length && j <= t; j++) {
+            sum += coefficients[j] * series[t - j];
+        }
+        return sum;
+    }
+}
@@ -6,9 +6,11 @@ package com.dataiku.hive.udf.maths;
  * Time: 15:12
  */
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.dataiku.hive.udf.BinaryPartials;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
@@ -21,11 +23,14 @@ import org.apache.hadoop.hive.serde2.io.DoubleWritable;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.objectinspector.StandardListObjectInspector;
 import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
 
 
 
@@ -131,7 +136,9 @@ public class UDFExponentialSmoothingMovingAverage extends AbstractGenericUDAFRes
 
         //System.out.println("check getEvaluator out");
 
-        return new GenericUDAFMovingAverageEvaluator();
+        GenericUDAFMovingAverageEvaluator evaluator = new GenericUDAFMovingAverageEvaluator();
+        evaluator.setBinaryPartials(BinaryPartials.isEnabled());
+        return evaluator;
     }
 
     public static class GenericUDAFMovingAverageEvaluator extends GenericUDAFEvaluator {
@@ -146,6 +153,22 @@ public class UDFExponentialSmoothingMovingAverage extends AbstractGenericUDAFRes
         // input inspectors for PARTIAL2 and FINAL
         // list for MAs and one for residuals
         private StandardListObjectInspector loi;
+        // or binary partials
+        private BinaryObjectInspector boi;
+
+        private boolean binaryPartials;
+
+        /**
+         * Whether the partial results are serialized as binary (see BinaryPartials).
+         * A bean property, so that it is kept with the plan.
+         */
+        public boolean isBinaryPartials() {
+            return binaryPartials;
+        }
+
+        public void setBinaryPartials(boolean binaryPartials) {
+            this.binaryPartials = binaryPartials;
+        }
 
 
         @Override
@@ -165,13 +188,22 @@ public class UDFExponentialSmoothingMovingAverage extends AbstractGenericUDAFRes
 
             }
 
+            else if (parameters[0] instanceof BinaryObjectInspector)
+            {
+                boi = (BinaryObjectInspector) parameters[0];
+                binaryPartials = true;
+            }
             else
             {
                 loi = (StandardListObjectInspector) parameters[0];
+                binaryPartials = false;
             }
 
             // init output object inspectors
-            if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+            if ((m == Mode.PARTIAL1 || m == Mode.PARTIAL2) && binaryPartials) {
+                return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+            }
+            else if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
                 // The output of a partial aggregation is a list of doubles representing the
                 // moving average being constructed.
                 // the first element in the list will be the window size
@@ -188,6 +220,18 @@ public class UDFExponentialSmoothingMovingAverage extends AbstractGenericUDAFRes
         public Object terminatePartial(AggregationBuffer agg) throws HiveException {
             // return an ArrayList where the first parameter is the window size
             MaAgg myagg = (MaAgg) agg;
+            if (binaryPartials)
+            {
+                DataOutputBuffer out = new DataOutputBuffer();
+                try {
+                    myagg.prefixSum.serializeBinary(out);
+                } catch (IOException e) {
+                    throw new HiveException(e);
+                }
+                BytesWritable result = new BytesWritable();
+                result.set(out.getData(), 0, out.getLength());
+                return result;
+            }
             return myagg.prefixSum.serialize();
 
         }
@@ -197,17 +241,14 @@ public class UDFExponentialSmoothingMovingAverage extends AbstractGenericUDAFRes
             // final return value goes here
             MaAgg myagg = (MaAgg) agg;
 
-            if (myagg.prefixSum.tableSize() < 1)
+            if (!myagg.prefixSum.isReady())
             {
                 return null;
             }
 
             else
             {
-                ArrayList<DoubleWritable[]> result = new ArrayList<DoubleWritable[]>();
-                DoubleWritable[] entry = new DoubleWritable[1];
-                entry[0] = new DoubleWritable(myagg.prefixSum.getEntry(myagg.prefixSum.tableSize()-1).movingAverage);
-                return entry[0];
+                return new DoubleWritable(myagg.prefixSum.getMovingAverage());
             }
 
         }
@@ -219,6 +260,16 @@ public class UDFExponentialSmoothingMovingAverage extends AbstractGenericUDAFRes
             if (partial != null)
             {
                 MaAgg myagg = (MaAgg) agg;
+                if (boi != null)
+                {
+                    BytesWritable bytes = boi.getPrimitiveWritableObject(partial);
+                    try {
+                        myagg.prefixSum.mergeBinary(bytes.getBytes(), bytes.getLength());
+                    } catch (IOException e) {
+                        throw new HiveException(e);
+                    }
+                    return;
+                }
                 List<DoubleWritable> partialMovingAverage = (List<DoubleWritable>) loi.getList(partial);
 
                 myagg.prefixSum.merge(partialMovingAverage);
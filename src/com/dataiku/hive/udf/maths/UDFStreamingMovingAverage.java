@@ -0,0 +1,49 @@
+package com.dataiku.hive.udf.maths;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDF;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+
+/**
+ * Moving average over the rows of a sorted stream, like rank: the average of the value of the current row
+ * and of the window - 1 previous rows of the same group, updated in O(1) per row (see SlidingMovingAverage).
+ */
+@Description(name = "moving_avg_stream", value = "_FUNC_(group, x, window, kernel [, div]) - Returns the moving mean of x over the last window rows of the group, with a 'simple', 'weighted' or 'exponential' (1/pow(div,i)) kernel")
+public final class UDFStreamingMovingAverage extends UDF {
+    private String currentGroup;
+    private SlidingMovingAverage average;
+
+    public Double evaluate(final String group, final Double value, final Integer window, final String kernel) throws UDFArgumentException {
+        return evaluate(group, value, window, kernel, 2.0);
+    }
+
+    public Double evaluate(final String group, final Double value, final Integer window, final String kernel, final Double div) throws UDFArgumentException {
+        if (window == null || kernel == null || div == null) {
+            throw new UDFArgumentException("The window, kernel and divisor of moving_avg_stream cannot be null");
+        }
+        if (window < 1) {
+            throw new UDFArgumentException("moving_avg_stream needs a window size >= 1");
+        }
+        if (average == null || average.getWindowSize() != window || !average.getKernel().name().equalsIgnoreCase(kernel)
+                || average.getDiviseur() != div) {
+            average = new SlidingMovingAverage(kernel(kernel), window, div);
+            currentGroup = group;
+        } else if (group == null ? currentGroup != null : !group.equals(currentGroup)) {
+            average.reset();
+            currentGroup = group;
+        }
+        if (value == null) {
+            return null;
+        }
+        return average.add(value);
+    }
+
+    private static SlidingMovingAverage.Kernel kernel(String kernel) throws UDFArgumentException {
+        for (SlidingMovingAverage.Kernel k : SlidingMovingAverage.Kernel.values()) {
+            if (k.name().equalsIgnoreCase(kernel)) {
+                return k;
+            }
+        }
+        throw new UDFArgumentException("Unknown moving average kernel '" + kernel + "', expected simple, weighted or exponential");
+    }
+}